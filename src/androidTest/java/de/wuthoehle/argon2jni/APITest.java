@@ -12,6 +12,9 @@ import android.support.test.runner.AndroidJUnit4;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -20,11 +23,13 @@ import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertSame;
 import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 
 @RunWith(AndroidJUnit4.class)
 public class APITest {
 
     private static byte[] common_key = new byte[] {0, 1, 2, 4, 8, 16, 33, 127};
+    private static char[] common_key_chars = new char[] {0, 1, 2, 4, 8, 16, 33, 127};
     private static byte[] common_salt = new byte[] {(-128), 0, 1, 2, 4, 8, 16, 33};
     private static Collection<Object[]> input_variations = data();
 
@@ -150,6 +155,152 @@ public class APITest {
         }
     }
 
+    @Test
+    public void deterministic_argon2_hash_chars_works() {
+        for(Object[] element : input_variations) {
+            Argon2 obj = new Argon2((SecurityParameters) element[0],
+                    Argon2.DefaultHashlen,
+                    (Integer) element[1],
+                    (Integer) element[2]);
+
+            EncodedArgon2Result result = obj.argon2_hash(common_key_chars, common_salt);
+            assertTrue(Arrays.equals((byte[]) element[3], result.getResult()));
+            assertEquals((String) element[4], result.getEncoded());
+
+            // Array backed buffer with an offset
+            CharBuffer wrapped = CharBuffer.wrap(new char[] {'x', 0, 1, 2, 4, 8, 16, 33, 127, 'y'}, 1, 8);
+            result = obj.argon2_hash(wrapped, common_salt);
+            assertEquals((String) element[4], result.getEncoded());
+            assertEquals(1, wrapped.position());
+
+            // Buffer without an accessible array
+            result = obj.argon2_hash(CharBuffer.wrap(new String(common_key_chars)), common_salt);
+            assertEquals((String) element[4], result.getEncoded());
+
+            Argon2Result rawResult = obj.argon2_hash_raw(common_key_chars, common_salt);
+            assertTrue(Arrays.equals((byte[]) element[3], rawResult.getResult()));
+        }
+    }
+
+    @Test
+    public void argon2_hash_chars_encodes_utf8() throws UnsupportedEncodingException {
+        Argon2 obj = new Argon2();
+
+        // Latin-1, BMP, a surrogate pair and an unpaired surrogate
+        String[] passwords = new String[] {"p\u00e4ssw\u00f6rd", "\u20ac\u4e2d", "\ud83d\ude00x", "a\ud800b"};
+        for(String password : passwords) {
+            Argon2Result fromChars = obj.argon2_hash_raw(password.toCharArray(), common_salt);
+            Argon2Result fromBytes = obj.argon2_hash_raw(password.getBytes("UTF-8"), common_salt);
+            assertTrue(Arrays.equals(fromBytes.getResult(), fromChars.getResult()));
+        }
+    }
+
+    @Test
+    public void argon2_verify_chars_works() {
+        for(Object[] element : input_variations) {
+            Argon2 obj = new Argon2((SecurityParameters) element[0],
+                    Argon2.DefaultHashlen,
+                    (Integer) element[1],
+                    (Integer) element[2]);
+            assertTrue(obj.argon2_verify((String) element[4], common_key_chars));
+            assertTrue(obj.argon2_verify((String) element[4], CharBuffer.wrap(common_key_chars)));
+            assertFalse(obj.argon2_verify((String) element[4], "wrong".toCharArray()));
+        }
+
+        EncodedArgon2Result result = Argon2.argon2_quick_hash(common_key_chars);
+        assertTrue(Argon2.argon2_quick_verify(result.getEncoded(), common_key_chars));
+        assertTrue(Argon2.argon2_quick_verify(result.getEncoded(), common_key));
+    }
+
+    @Test
+    public void deterministic_argon2_hash_direct_works() {
+        ByteBuffer pwd = ByteBuffer.allocateDirect(common_key.length);
+        pwd.put(common_key).flip();
+        ByteBuffer salt = ByteBuffer.allocateDirect(common_salt.length + 2);
+        salt.put((byte) 1).put(common_salt).put((byte) 2);
+        salt.position(1).limit(1 + common_salt.length);
+
+        for(Object[] element : input_variations) {
+            Argon2 obj = new Argon2((SecurityParameters) element[0],
+                    Argon2.DefaultHashlen,
+                    (Integer) element[1],
+                    (Integer) element[2]);
+
+            ByteBuffer out = ByteBuffer.allocateDirect(Argon2.DefaultHashlen + 1);
+            out.position(1);
+            obj.argon2_hash_raw(pwd, salt, out);
+            assertEquals(Argon2.DefaultHashlen + 1, out.position());
+            assertEquals(0, pwd.position());
+            assertEquals(1, salt.position());
+
+            byte[] result = new byte[Argon2.DefaultHashlen];
+            out.position(1);
+            out.get(result);
+            assertTrue(Arrays.equals((byte[]) element[3], result));
+
+            assertTrue(obj.argon2_verify((String) element[4], pwd));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void argon2_hash_direct_rejects_heap_buffers() {
+        new Argon2().argon2_hash_raw(ByteBuffer.wrap(common_key), ByteBuffer.wrap(common_salt),
+                ByteBuffer.allocateDirect(Argon2.DefaultHashlen));
+    }
+
+    @Test
+    public void argon2_hash_stepwise_works() {
+        for(Object[] element : input_variations) {
+            Argon2 obj = new Argon2((SecurityParameters) element[0],
+                    Argon2.DefaultHashlen,
+                    (Integer) element[1],
+                    (Integer) element[2]);
+
+            Argon2HashState state = obj.argon2_hash_stepwise(common_key, common_salt);
+            try {
+                // t_cost * 4 slices * parallelism
+                assertEquals(3 * 4, state.getTotalSegments());
+
+                int steps = 0;
+                while(! state.step(1)) {
+                    steps++;
+                    assertEquals(state.getTotalSegments() - steps, state.getRemainingSegments());
+                }
+                assertTrue(state.isFinished());
+
+                EncodedArgon2Result result = (EncodedArgon2Result) state.getResult();
+                assertTrue(Arrays.equals((byte[]) element[3], result.getResult()));
+                assertEquals((String) element[4], result.getEncoded());
+            } finally {
+                state.close();
+            }
+
+            state = obj.argon2_hash_raw_stepwise(common_key, common_salt);
+            try {
+                assertTrue(state.step(Integer.MAX_VALUE));
+                assertTrue(Arrays.equals((byte[]) element[3], state.getResult().getResult()));
+            } finally {
+                state.close();
+            }
+        }
+    }
+
+    @Test
+    public void argon2_hash_stepwise_can_be_aborted() {
+        Argon2 obj = new Argon2(new SecurityParameters(2, 1 << 8, 2), 32,
+                Argon2.TypeIdentifiers.ARGON2ID, Argon2.VersionIdentifiers.VERSION_13);
+        Argon2HashState state = obj.argon2_hash_stepwise(common_key);
+        assertFalse(state.step(3));
+        try {
+            state.getResult();
+            fail("getResult should fail for unfinished computations");
+        } catch(IllegalStateException e) {
+            // expected
+        }
+        state.close();
+        state.close();
+    }
+
     @Test
     public void argon2_quick_hash_works() {
         EncodedArgon2Result result = Argon2.argon2_quick_hash(common_key);
@@ -0,0 +1,158 @@
+package de.wuthoehle.argon2jni;
+/*
+ * Copyright (c) Marco Huenseler
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+public class Blake2bTest {
+    private static final String ABC_512 = "ba80a53f981c4d0d6a2797b69f12f6e94c212f14685ac4b74b12bb6fdbffa2d1" +
+            "7d87c5392aab792dc252d5de4533cc9518d38aa8dbf1925ab92386edd4009923";
+    private static final String EMPTY_512 = "786a02f742015903c6c6fd852552d272912f4740e15847618a86e217f71f5419" +
+            "d25e1031afee585313896444934eb04b903a685b1448b755d56f701afe9be2ce";
+    private static final String ABC_KEYED_256 = "dff38c978666dff5631db35ca15535520d134f5c8060ea569c6a178ad393719f";
+
+    public Blake2bTest() {}
+
+    @Test
+    public void oneshot_hash_works() throws UnsupportedEncodingException {
+        assertEquals(ABC_512, bytesToHex(Blake2b.hash("abc".getBytes("US-ASCII"), 64)));
+        assertEquals(EMPTY_512, bytesToHex(Blake2b.hash(new byte[0], 64)));
+        assertEquals(ABC_KEYED_256, bytesToHex(Blake2b.hash("abc".getBytes("US-ASCII"), 32, testKey())));
+    }
+
+    @Test
+    public void streaming_hash_works() throws UnsupportedEncodingException {
+        Blake2b blake2b = new Blake2b(64);
+        blake2b.update("a".getBytes("US-ASCII"));
+        blake2b.update(ByteBuffer.wrap("xbx".getBytes("US-ASCII"), 1, 1));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(1);
+        direct.put((byte) 'c').flip();
+        blake2b.update(direct);
+        assertEquals(0, direct.remaining());
+
+        assertEquals(ABC_512, bytesToHex(blake2b.finish()));
+
+        try {
+            blake2b.update(new byte[1]);
+            fail("update should fail after finish");
+        } catch(IllegalStateException e) {
+            // expected
+        }
+        blake2b.close();
+
+        Blake2b keyed = new Blake2b(32, testKey());
+        keyed.update("abc".getBytes("US-ASCII"), 0, 3);
+        assertEquals(ABC_KEYED_256, bytesToHex(keyed.finish()));
+        keyed.close();
+    }
+
+    @Test
+    public void batch_hash_works() throws UnsupportedEncodingException {
+        byte[][] messages = new byte[][] {"abc".getBytes("US-ASCII"), new byte[0], "abc".getBytes("US-ASCII")};
+        byte[] results = Blake2b.hashBatch(messages, 64, null);
+        assertEquals(3 * 64, results.length);
+        assertEquals(ABC_512, bytesToHex(Arrays.copyOfRange(results, 0, 64)));
+        assertEquals(EMPTY_512, bytesToHex(Arrays.copyOfRange(results, 64, 128)));
+        assertEquals(ABC_512, bytesToHex(Arrays.copyOfRange(results, 128, 192)));
+
+        byte[] keyed = Blake2b.hashBatch(new byte[][] {"abc".getBytes("US-ASCII")}, 32, testKey());
+        assertEquals(ABC_KEYED_256, bytesToHex(keyed));
+    }
+
+    @Test
+    public void large_arrays_match_direct_buffers() {
+        // Spans several of the chunks arrays are hashed in, direct buffers are hashed in one piece
+        byte[] message = new byte[3 * 64 * 1024 + 17];
+        for(int i = 0; i < message.length; i++) {
+            message[i] = (byte) (i * 31);
+        }
+        ByteBuffer direct = ByteBuffer.allocateDirect(message.length);
+        direct.put(message).flip();
+
+        Blake2b blake2b = new Blake2b(64);
+        blake2b.update(direct);
+        String expected = bytesToHex(blake2b.finish());
+        blake2b.close();
+
+        Blake2b offsetUpdate = new Blake2b(64);
+        offsetUpdate.update(message, 0, 5);
+        offsetUpdate.update(message, 5, message.length - 5);
+        assertEquals(expected, bytesToHex(offsetUpdate.finish()));
+        offsetUpdate.close();
+
+        assertEquals(expected, bytesToHex(Blake2b.hash(message, 64)));
+        assertEquals(expected, bytesToHex(Blake2b.hashBatch(new byte[][] {message}, 64, null)));
+    }
+
+    @Test
+    public void invalid_regions_are_rejected() throws IOException {
+        File file = File.createTempFile("argon2jni", ".blake2b");
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        Blake2b blake2b = new Blake2b(64);
+        try {
+            long[][] regions = new long[][] {{-1, 1}, {0, -1}, {1, Long.MAX_VALUE}};
+            for(long[] region : regions) {
+                try {
+                    blake2b.update(randomAccessFile.getChannel(), region[0], region[1]);
+                    fail("Negative or overflowing regions should be rejected");
+                } catch(IllegalArgumentException e) {
+                    // expected
+                }
+            }
+        } finally {
+            blake2b.close();
+            randomAccessFile.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void invalid_lengths_are_rejected() {
+        try {
+            new Blake2b(65);
+            fail("Output lengths above 64 bytes should be rejected");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+
+        try {
+            new Blake2b(32, new byte[65]);
+            fail("Keys above 64 bytes should be rejected");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static byte[] testKey() {
+        byte[] key = new byte[Blake2b.MaxKeyLength];
+        for(int i = 0; i < key.length; i++) {
+            key[i] = (byte) i;
+        }
+        return key;
+    }
+
+    private static String bytesToHex(byte[] value) {
+        String alphabet = "0123456789abcdef";
+        StringBuilder wholeString = new StringBuilder();
+        for(byte element : value) {
+            wholeString.append(alphabet.charAt((element >> 4) & 0xF));
+            wholeString.append(alphabet.charAt(element & 0xF));
+        }
+        return wholeString.toString();
+    }
+}
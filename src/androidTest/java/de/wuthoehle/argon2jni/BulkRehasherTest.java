@@ -0,0 +1,132 @@
+package de.wuthoehle.argon2jni;
+/*
+ * Copyright (c) Marco Huenseler
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class BulkRehasherTest {
+    private static final SecurityParameters parameters = new SecurityParameters(1, 64, 1);
+
+    public BulkRehasherTest() {}
+
+    @Test
+    public void records_are_hashed_in_order() throws IOException, InterruptedException {
+        Argon2BulkRehasher rehasher = new Argon2BulkRehasher(parameters, 16,
+                Argon2.TypeIdentifiers.ARGON2ID, Argon2.VersionIdentifiers.VERSION_13, 4, 1 << 20);
+        rehasher.setCheckpointInterval(3);
+
+        StringWriter output = new StringWriter();
+        MemoryCheckpoint checkpoint = new MemoryCheckpoint();
+        Argon2BulkRehasher.Progress progress = rehasher.run(
+                Argon2BulkRehasher.tabSeparatedSource(new BufferedReader(new StringReader(input(10)))),
+                Argon2BulkRehasher.tabSeparatedSink(output), checkpoint, null);
+
+        assertEquals(10, progress.getCommitted());
+        assertEquals(1, progress.getFailed());
+        assertEquals(10, checkpoint.committed);
+
+        String[] lines = output.toString().split("\n");
+        assertEquals(10, lines.length);
+        Argon2 verifier = new Argon2(parameters, 16, Argon2.TypeIdentifiers.ARGON2ID, Argon2.VersionIdentifiers.VERSION_13);
+        for(int i = 0; i < lines.length; i++) {
+            String[] fields = lines[i].split("\t");
+            assertEquals("user" + i, fields[0]);
+            if(i == 5) {
+                // Empty input
+                assertTrue(fields[1].startsWith("!"));
+            } else {
+                assertTrue(verifier.argon2_verify(fields[1], ("password" + i).getBytes("UTF-8")));
+            }
+        }
+    }
+
+    @Test
+    public void runs_can_be_resumed() throws IOException, InterruptedException {
+        Argon2BulkRehasher rehasher = new Argon2BulkRehasher(parameters, 16,
+                Argon2.TypeIdentifiers.ARGON2ID, Argon2.VersionIdentifiers.VERSION_13, 2, 1 << 20);
+
+        MemoryCheckpoint checkpoint = new MemoryCheckpoint();
+        checkpoint.committed = 7;
+
+        StringWriter output = new StringWriter();
+        Argon2BulkRehasher.Progress progress = rehasher.run(
+                Argon2BulkRehasher.tabSeparatedSource(new BufferedReader(new StringReader(input(10)))),
+                Argon2BulkRehasher.tabSeparatedSink(output), checkpoint, null);
+
+        assertEquals(7, progress.getSkipped());
+        assertEquals(3, progress.getCommitted());
+        assertEquals(10, checkpoint.committed);
+        assertTrue(output.toString().startsWith("user7\t"));
+    }
+
+    @Test
+    public void workers_are_capped_by_memory() {
+        Argon2BulkRehasher rehasher = new Argon2BulkRehasher(parameters, 16,
+                Argon2.TypeIdentifiers.ARGON2ID, Argon2.VersionIdentifiers.VERSION_13, 8, 3 * 64);
+        assertEquals(3, rehasher.getWorkers());
+    }
+
+    @Test
+    public void invalid_parameters_are_rejected() {
+        Object[][] invalid = new Object[][] {
+                // m_cost below 8 KiB per lane
+                {new SecurityParameters(1, 8, 4), 16, Argon2.TypeIdentifiers.ARGON2ID, Argon2.VersionIdentifiers.VERSION_13},
+                {parameters, 3, Argon2.TypeIdentifiers.ARGON2ID, Argon2.VersionIdentifiers.VERSION_13},
+                {parameters, 16, 7, Argon2.VersionIdentifiers.VERSION_13},
+                {parameters, 16, Argon2.TypeIdentifiers.ARGON2ID, 0x11}
+        };
+        for(Object[] arguments : invalid) {
+            try {
+                new Argon2BulkRehasher((SecurityParameters) arguments[0], (Integer) arguments[1],
+                        (Integer) arguments[2], (Integer) arguments[3], 4, 1 << 20);
+                fail("Argon2BulkRehasher should have rejected its parameters");
+            } catch(IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void null_inputs_are_rejected() {
+        new Argon2BulkRehasher.Record("user", null);
+    }
+
+    private static String input(int count) {
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < count; i++) {
+            builder.append("user").append(i).append('\t');
+            if(i != 5) {
+                builder.append("password").append(i);
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static final class MemoryCheckpoint implements Argon2BulkRehasher.Checkpoint {
+        long committed;
+
+        @Override
+        public long load() {
+            return committed;
+        }
+
+        @Override
+        public void save(long committed) {
+            this.committed = committed;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package de.wuthoehle.argon2jni;
+/*
+ * Copyright (c) Marco Huenseler
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class HashStoreTest {
+    private static byte[] common_key = new byte[] {0, 1, 2, 4, 8, 16, 33, 127};
+    private static String[] encoded_hashes = new String[] {
+            "$argon2d$v=16$m=4096,t=3,p=1$gAABAgQIECE$JmUJUzmjgYIqdk4MWOW9qA",
+            "$argon2i$v=19$m=4096,t=3,p=1$gAABAgQIECE$dAcOK478Oesqg2adlw9OLg",
+            "$argon2id$v=19$m=4096,t=3,p=1$gAABAgQIECE$8maPt8XfcEhCdNHuGkrI1A",
+            // Without version field, as written by old Argon2 releases
+            "$argon2i$m=4096,t=3,p=1$gAABAgQIECE$O8nxI/QBtrILpMC37nXLnA"
+    };
+
+    public HashStoreTest() {}
+
+    @Test
+    public void records_convert_losslessly() {
+        for(String encoded : encoded_hashes) {
+            Argon2HashRecord record = Argon2HashRecord.parse(encoded);
+            assertEquals(encoded, record.getEncoded());
+            assertEquals(3, record.getSecurityParameters().t_cost);
+            assertEquals(4096, record.getSecurityParameters().m_cost);
+        }
+
+        EncodedArgon2Result result = Argon2.argon2_quick_hash(common_key);
+        Argon2HashRecord record = Argon2HashRecord.fromResult(result);
+        assertEquals(result.getEncoded(), record.getEncoded());
+        assertTrue(Arrays.equals(result.getResult(), record.getHash()));
+    }
+
+    @Test
+    public void invalid_encodings_are_rejected() {
+        String[] invalid = new String[] {
+                "$argon2i$v=19$m=65536,t=2,p=1c29tZXNhbHQ$wWKIMhR9lyDFvRz9YTZweHKfbftvj+qf+YFY4NeBbtA",
+                "$argon2x$v=19$m=4096,t=3,p=1$gAABAgQIECE$dAcOK478Oesqg2adlw9OLg",
+                "$argon2i$v=19$m=4096,t=3,p=1$gAABAgQIECE$dAcOK478Oesqg2adlw9OL!"
+        };
+        for(String encoded : invalid) {
+            try {
+                Argon2HashRecord.parse(encoded);
+                fail("parse should have thrown a decoding-related exception");
+            } catch(Argon2Exception e) {
+                assertTrue(e.getMessage().contains("Decoding"));
+            }
+        }
+    }
+
+    @Test
+    public void removed_entries_are_compacted() throws IOException {
+        File file = File.createTempFile("argon2jni", ".store");
+        try {
+            Argon2HashStore store = Argon2HashStore.create(file, 8, 16, 16, 32);
+
+            // Slots 5 to 7 are taken, so wrapped is probed around to slot 0. Compacting moves it back to slot 5,
+            // which still holds a pending entry that has to be carried on.
+            String[] homed = new String[] {keyStartingAt(5, 0), keyStartingAt(6, 0), keyStartingAt(7, 0)};
+            String wrapped = keyStartingAt(5, 1);
+            String[] removed = new String[] {keyStartingAt(1, 0), keyStartingAt(1, 1)};
+            String kept = keyStartingAt(1, 2);
+
+            String[] live = new String[] {homed[0], homed[1], homed[2], wrapped, kept};
+            for(int i = 0; i < live.length; i++) {
+                store.put(live[i], encoded_hashes[i % encoded_hashes.length]);
+            }
+            for(String key : removed) {
+                store.put(key, encoded_hashes[0]);
+            }
+
+            assertTrue(store.remove(removed[0]));
+            assertEquals(1, store.tombstones());
+            // Two tombstones make up more than half of the slots not in use, which triggers the compaction
+            assertTrue(store.remove(removed[1]));
+            assertEquals(0, store.tombstones());
+
+            checkEntries(store, live, removed);
+            store.close();
+
+            Argon2HashStore reopened = Argon2HashStore.open(file);
+            assertEquals(0, reopened.tombstones());
+            checkEntries(reopened, live, removed);
+            reopened.close();
+
+            // A crash during compaction leaves the flag in the header, reopening finishes the compaction
+            RandomAccessFile raw = new RandomAccessFile(file, "rw");
+            raw.seek(32);
+            raw.writeInt(1);
+            raw.close();
+            Argon2HashStore resumed = Argon2HashStore.open(file);
+            checkEntries(resumed, live, removed);
+            resumed.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static String keyStartingAt(int slot, int skip) {
+        for(int i = 0; ; i++) {
+            String key = "user" + i;
+            if(Argon2HashStore.startSlot(key.getBytes(), 8) == slot && skip-- == 0) {
+                return key;
+            }
+        }
+    }
+
+    private static void checkEntries(Argon2HashStore store, String[] live, String[] removed) {
+        assertEquals(live.length, store.size());
+        for(int i = 0; i < live.length; i++) {
+            assertEquals(encoded_hashes[i % encoded_hashes.length], store.getEncoded(live[i]));
+        }
+        for(String key : removed) {
+            assertNull(store.get(key));
+        }
+    }
+
+    @Test
+    public void store_works() throws IOException {
+        File file = File.createTempFile("argon2jni", ".store");
+        try {
+            Argon2HashStore store = Argon2HashStore.create(file, 16, 32, 16, 32);
+            for(int i = 0; i < encoded_hashes.length; i++) {
+                store.put("user" + i, encoded_hashes[i]);
+            }
+            assertEquals(encoded_hashes.length, store.size());
+
+            for(int i = 0; i < encoded_hashes.length; i++) {
+                assertEquals(encoded_hashes[i], store.getEncoded("user" + i));
+                assertTrue(store.verify("user" + i, common_key));
+                assertFalse(store.verify("user" + i, new byte[] {1}));
+            }
+            assertNull(store.get("nobody"));
+            assertFalse(store.verify("nobody", common_key));
+
+            assertTrue(store.remove("user0"));
+            assertNull(store.get("user0"));
+            assertEquals(encoded_hashes[2], store.getEncoded("user2"));
+            store.close();
+
+            Argon2HashStore reopened = Argon2HashStore.open(file);
+            assertEquals(encoded_hashes.length - 1, reopened.size());
+            assertTrue(reopened.verify("user1", common_key));
+            reopened.close();
+
+            try {
+                reopened.get("user1");
+                fail("closed store should have thrown");
+            } catch(IllegalStateException e) {
+                assertTrue(e.getMessage().contains("closed"));
+            }
+            reopened.close();
+        } finally {
+            file.delete();
+        }
+    }
+}
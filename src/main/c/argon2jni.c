@@ -10,6 +10,9 @@
 
 #include <jni.h>
 #include <argon2.h>
+#include <core.h>
+#include <encoding.h>
+#include <blake2/blake2.h>
 
 #ifdef __cplusplus
 extern "C" {
@@ -30,6 +33,32 @@ typedef struct result_ingredients {
     jstring encoded;
 } result_ingredients_t;
 
+/* Password chars are encoded on the stack up to this length, longer ones use a heap scratch buffer */
+#define ARGON2JNI_STACK_PASSWORD_CHARS 128
+
+/* UTF-8 encoded password, wiped by release_password */
+typedef struct password_buffer {
+    jchar stack_chars[ARGON2JNI_STACK_PASSWORD_CHARS];
+    uint8_t stack_utf8[ARGON2JNI_STACK_PASSWORD_CHARS * 3];
+    jchar* chars;
+    uint8_t* utf8;
+    jsize utf8len;
+} password_buffer_t;
+
+/* Java arrays are hashed in critical sections of at most this many bytes, so the GC is never held off for long */
+#define ARGON2JNI_CRITICAL_CHUNK (64 * 1024)
+
+/* Resumable Argon2 computation, advanced segment by segment from Java */
+typedef struct hash_state {
+    argon2_context context;
+    argon2_instance_t instance;
+    argon2_position_t position;
+    uint32_t remaining_segments;
+    argon2_type type;
+    char* encoded;
+    jint encodedlen;
+} hash_state_t;
+
 /* Throw Exception helper */
 jint throw_exception(JNIEnv *, const char *, const char *);
 
@@ -48,6 +77,37 @@ int create_result_ingredients(JNIEnv*, const void*, const jsize, result_ingredie
 /* Contruct result object [CAN THROW EXCEPTIONS]*/
 jobject create_result(JNIEnv*, const void*, const jsize, const char*);
 
+/* Hash an already extracted password and construct the result object [CAN THROW EXCEPTIONS] */
+jobject hash_password(JNIEnv*, jint, jint, jint, const void*, const jsize, jbyteArray, jint, jint, jint, jint);
+
+/* Verify an already extracted password against an encoded hash [CAN THROW EXCEPTIONS] */
+jboolean verify_password(JNIEnv*, jstring, const void*, const jsize, jint);
+
+/* Copy a char[] region and encode it as UTF-8 into a password buffer [CAN THROW EXCEPTIONS] */
+int encode_password(JNIEnv*, jcharArray, const jint, const jint, password_buffer_t*);
+
+/* Wipe and free the encoded password held by a password buffer */
+void release_password(password_buffer_t*);
+
+/* Encode UTF-16 code units as UTF-8, returns the number of bytes written */
+jsize utf16_to_utf8(const jchar*, const jsize, uint8_t*);
+
+/* Overwrite memory which held secret values */
+void wipe_memory(void*, const size_t);
+
+/* Get the address of a region within a direct buffer [CAN THROW EXCEPTIONS] */
+uint8_t* get_direct_region(JNIEnv*, jobject, const jint, const jint);
+
+/* Feed a region of a Java array to BLAKE2b chunk by chunk, returns 0 on success [CAN THROW EXCEPTIONS] */
+int blake2b_update_array(JNIEnv*, blake2b_state*, jbyteArray, jint, jint);
+
+/* Wipe and free everything owned by a hash state, including unfinished Argon2 memory */
+void free_hash_state(hash_state_t*);
+
+/* Memory callbacks handed to Argon2, so unfinished states can free their blocks on their own */
+int allocate_state_memory(uint8_t**, size_t);
+void deallocate_state_memory(uint8_t*, size_t);
+
 JNIEXPORT jobject JNICALL
 Java_de_wuthoehle_argon2jni_Argon2_argon2jni_1hash(
         JNIEnv *env, jclass type,
@@ -56,6 +116,567 @@ Java_de_wuthoehle_argon2jni_Argon2_argon2jni_1hash(
         jint hashlen, jint encodedlen,
         jint typeid, jint versionid) {
 
+    /* Get Password */
+    jbyte *passwordval = (*env)->GetByteArrayElements(env, pwd, NULL);
+    if(passwordval == NULL) {
+        throw_exception(env, "java/lang/OutOfMemoryError", "Could not allocate enough space to continue");
+        return NULL;
+    }
+
+    jobject result = hash_password(env, t_cost, m_cost, parallelism,
+                                   passwordval, (*env)->GetArrayLength(env, pwd), salt,
+                                   hashlen, encodedlen, typeid, versionid);
+
+    /* Free JNI variables, never copy back changes */
+    (*env)->ReleaseByteArrayElements(env, pwd, passwordval, JNI_ABORT);
+
+    return result;
+}
+
+JNIEXPORT jobject JNICALL
+Java_de_wuthoehle_argon2jni_Argon2_argon2jni_1hash_1chars(
+        JNIEnv *env, jclass type,
+        jint t_cost, jint m_cost, jint parallelism,
+        jcharArray pwd, jint pwdoffset, jint pwdlen, jbyteArray salt,
+        jint hashlen, jint encodedlen,
+        jint typeid, jint versionid) {
+
+    /* Encode password as UTF-8 into a scratch buffer which gets wiped right after hashing */
+    password_buffer_t password;
+    if(! encode_password(env, pwd, pwdoffset, pwdlen, &password)) {
+        /* encode_password already threw */
+        return NULL;
+    }
+
+    jobject result = hash_password(env, t_cost, m_cost, parallelism,
+                                   password.utf8, password.utf8len, salt,
+                                   hashlen, encodedlen, typeid, versionid);
+
+    release_password(&password);
+    return result;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_de_wuthoehle_argon2jni_Argon2_argon2jni_1verify(JNIEnv *env, jclass type, jstring encoded,
+                                                     jbyteArray pwd, jint typeid) {
+    jbyte *pwdval = (*env)->GetByteArrayElements(env, pwd, NULL);
+    if(pwdval == NULL) {
+        throw_exception(env, "java/lang/OutOfMemoryError", "Could not allocate enough space to continue");
+        return 0;
+    }
+
+    jboolean result = verify_password(env, encoded, pwdval, (*env)->GetArrayLength(env, pwd), typeid);
+
+    (*env)->ReleaseByteArrayElements(env, pwd, pwdval, JNI_ABORT);
+    return result;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_de_wuthoehle_argon2jni_Argon2_argon2jni_1verify_1chars(JNIEnv *env, jclass type, jstring encoded,
+                                                            jcharArray pwd, jint pwdoffset, jint pwdlen,
+                                                            jint typeid) {
+    password_buffer_t password;
+    if(! encode_password(env, pwd, pwdoffset, pwdlen, &password)) {
+        return 0;
+    }
+
+    jboolean result = verify_password(env, encoded, password.utf8, password.utf8len, typeid);
+
+    release_password(&password);
+    return result;
+}
+
+JNIEXPORT void JNICALL
+Java_de_wuthoehle_argon2jni_Argon2_argon2jni_1hash_1direct(
+        JNIEnv *env, jclass type,
+        jint t_cost, jint m_cost, jint parallelism,
+        jobject pwd, jint pwdoffset, jint pwdlen,
+        jobject salt, jint saltoffset, jint saltlen,
+        jobject out, jint outoffset, jint hashlen,
+        jint typeid, jint versionid) {
+
+    argon2_type target_type;
+    if(! typeid_to_argon2_type(typeid, &target_type)) {
+        throw_exception(env, "java/lang/IllegalArgumentException", "Argon2 target type must be a valid algorithm ID");
+        return;
+    }
+
+    argon2_version target_version;
+    if(! versionid_to_argon2_version(versionid, &target_version)) {
+        throw_exception(env, "java/lang/IllegalArgumentException", "Argon2 target version must be a valid algorithm version ID");
+        return;
+    }
+
+    if(t_cost <= 0 || m_cost <= 0 || parallelism <= 0 || hashlen <= 0 || pwdlen <= 0 || saltlen <= 0) {
+        throw_exception(env,
+                        "java/lang/IllegalArgumentException",
+                        "Factors and values given to Argon2 must be positive and have a positive length"
+        );
+        return;
+    }
+
+    /* No copies: Argon2 reads and writes the buffers' memory directly */
+    /* get_direct_region throws on failure, return before calling into JNI again */
+    uint8_t *pwdval = get_direct_region(env, pwd, pwdoffset, pwdlen);
+    if(pwdval == NULL) {
+        return;
+    }
+    uint8_t *saltval = get_direct_region(env, salt, saltoffset, saltlen);
+    if(saltval == NULL) {
+        return;
+    }
+    uint8_t *target = get_direct_region(env, out, outoffset, hashlen);
+    if(target == NULL) {
+        return;
+    }
+
+    int argon2_result_code = argon2_hash((const uint32_t) t_cost, (const uint32_t) m_cost,
+                                         (const uint32_t) parallelism,
+                                         pwdval, (const size_t) pwdlen,
+                                         saltval, (const size_t) saltlen,
+                                         target, (const size_t) hashlen,
+                                         NULL, 0,
+                                         target_type, target_version);
+    if(argon2_result_code != ARGON2_OK) {
+        throw_exception(env, "de/wuthoehle/argon2jni/Argon2Exception",
+                        argon2_error_message(argon2_result_code));
+    }
+}
+
+JNIEXPORT jboolean JNICALL
+Java_de_wuthoehle_argon2jni_Argon2_argon2jni_1verify_1direct(JNIEnv *env, jclass type, jstring encoded,
+                                                             jobject pwd, jint pwdoffset, jint pwdlen,
+                                                             jint typeid) {
+    uint8_t *pwdval = get_direct_region(env, pwd, pwdoffset, pwdlen);
+    if(pwdval == NULL) {
+        return 0;
+    }
+
+    return verify_password(env, encoded, pwdval, pwdlen, typeid);
+}
+
+JNIEXPORT jboolean JNICALL
+Java_de_wuthoehle_argon2jni_Argon2_argon2jni_1verify_1raw_1direct(
+        JNIEnv *env, jclass type,
+        jobject record, jint saltoffset, jint saltlen, jint hashoffset, jint hashlen,
+        jint t_cost, jint m_cost, jint parallelism,
+        jbyteArray pwd, jint typeid, jint versionid) {
+
+    jboolean result = 0;
+    jbyte *pwdval = NULL;
+    uint8_t *target = NULL;
+
+    argon2_type target_type;
+    if(! typeid_to_argon2_type(typeid, &target_type)) {
+        throw_exception(env, "java/lang/IllegalArgumentException", "Argon2 target type must be a valid algorithm ID");
+        return 0;
+    }
+
+    argon2_version target_version;
+    if(! versionid_to_argon2_version(versionid, &target_version)) {
+        throw_exception(env, "java/lang/IllegalArgumentException", "Argon2 target version must be a valid algorithm version ID");
+        return 0;
+    }
+
+    jsize pwdlen = (*env)->GetArrayLength(env, pwd);
+    if(t_cost <= 0 || m_cost <= 0 || parallelism <= 0 || hashlen <= 0 || pwdlen <= 0 || saltlen <= 0) {
+        throw_exception(env,
+                        "java/lang/IllegalArgumentException",
+                        "Factors and values given to Argon2 must be positive and have a positive length"
+        );
+        return 0;
+    }
+
+    /* Salt and expected hash are read straight from the (memory-mapped) record */
+    uint8_t *saltval = get_direct_region(env, record, saltoffset, saltlen);
+    if(saltval == NULL) {
+        return 0;
+    }
+    uint8_t *hashval = get_direct_region(env, record, hashoffset, hashlen);
+    if(hashval == NULL) {
+        return 0;
+    }
+
+    pwdval = (*env)->GetByteArrayElements(env, pwd, NULL);
+    target = (uint8_t*) malloc(sizeof(uint8_t) * hashlen);
+    if(pwdval == NULL || target == NULL) {
+        throw_exception(env, "java/lang/OutOfMemoryError", "Could not allocate enough space to continue");
+        goto cleanup_verify_raw;
+    }
+
+    argon2_context context = {0};
+    context.out = target;
+    context.outlen = (uint32_t) hashlen;
+    context.pwd = (uint8_t*) pwdval;
+    context.pwdlen = (uint32_t) pwdlen;
+    context.salt = saltval;
+    context.saltlen = (uint32_t) saltlen;
+    context.t_cost = (uint32_t) t_cost;
+    context.m_cost = (uint32_t) m_cost;
+    context.lanes = (uint32_t) parallelism;
+    context.threads = (uint32_t) parallelism;
+    context.version = target_version;
+    context.flags = ARGON2_DEFAULT_FLAGS;
+
+    /* Same as argon2_verify, without encoding and decoding the hash string */
+    int argon2_result_code = argon2_verify_ctx(&context, (const char*) hashval, target_type);
+    if(argon2_result_code == ARGON2_OK) {
+        result = 1;
+    }
+    else if(argon2_result_code != ARGON2_VERIFY_MISMATCH) {
+        throw_exception(env, "de/wuthoehle/argon2jni/Argon2Exception",
+                        argon2_error_message(argon2_result_code));
+    }
+
+    cleanup_verify_raw:
+    if(target) {
+        wipe_memory(target, (size_t) hashlen);
+        free(target);
+    }
+    if(pwdval) {
+        (*env)->ReleaseByteArrayElements(env, pwd, pwdval, JNI_ABORT);
+    }
+
+    return result;
+}
+
+JNIEXPORT jlong JNICALL
+Java_de_wuthoehle_argon2jni_Argon2HashState_argon2jni_1state_1create(
+        JNIEnv *env, jclass type,
+        jint t_cost, jint m_cost, jint parallelism,
+        jbyteArray pwd, jbyteArray salt,
+        jint hashlen, jint encodedlen,
+        jint typeid, jint versionid) {
+
+    hash_state_t *state = NULL;
+    uint8_t *pwdcopy = NULL;
+
+    /* Determine Argon2 algorithm type and version */
+    argon2_type target_type;
+    if(! typeid_to_argon2_type(typeid, &target_type)) {
+        throw_exception(env, "java/lang/IllegalArgumentException", "Argon2 target type must be a valid algorithm ID");
+        return 0;
+    }
+    argon2_version target_version;
+    if(! versionid_to_argon2_version(versionid, &target_version)) {
+        throw_exception(env, "java/lang/IllegalArgumentException", "Argon2 target version must be a valid algorithm version ID");
+        return 0;
+    }
+
+    jsize passwordlen = (*env)->GetArrayLength(env, pwd);
+    jsize saltlen = (*env)->GetArrayLength(env, salt);
+
+    if(t_cost <= 0 || m_cost <= 0 || parallelism <= 0 || hashlen <= 0 || passwordlen <= 0 || saltlen <= 0 || encodedlen < 0) {
+        throw_exception(env,
+                        "java/lang/IllegalArgumentException",
+                        "Factors and values given to Argon2 must be positive and have a positive length (encodedlen may be 0)"
+        );
+        return 0;
+    }
+
+    /* The state owns copies of everything it needs, Java arrays may change between steps */
+    state = (hash_state_t*) calloc(1, sizeof(hash_state_t));
+    if(state == NULL) {
+        throw_exception(env, "java/lang/OutOfMemoryError", "Could not allocate enough space to continue");
+        return 0;
+    }
+    pwdcopy = (uint8_t*) malloc(sizeof(uint8_t) * passwordlen);
+    state->context.salt = (uint8_t*) malloc(sizeof(uint8_t) * saltlen);
+    state->context.out = (uint8_t*) malloc(sizeof(uint8_t) * hashlen);
+    if(encodedlen > 0) {
+        state->encoded = (char*) malloc((sizeof(char) * encodedlen) + 1);
+    }
+    if(pwdcopy == NULL || state->context.salt == NULL || state->context.out == NULL || (state->encoded == NULL && encodedlen > 0)) {
+        throw_exception(env, "java/lang/OutOfMemoryError", "Could not allocate enough space to continue");
+        goto cleanup_create;
+    }
+    (*env)->GetByteArrayRegion(env, pwd, 0, passwordlen, (jbyte*) pwdcopy);
+    (*env)->GetByteArrayRegion(env, salt, 0, saltlen, (jbyte*) state->context.salt);
+
+    state->context.outlen = (uint32_t) hashlen;
+    state->context.pwd = pwdcopy;
+    state->context.pwdlen = (uint32_t) passwordlen;
+    state->context.saltlen = (uint32_t) saltlen;
+    state->context.t_cost = (uint32_t) t_cost;
+    state->context.m_cost = (uint32_t) m_cost;
+    state->context.lanes = (uint32_t) parallelism;
+    state->context.threads = (uint32_t) parallelism;
+    state->context.version = target_version;
+    state->context.allocate_cbk = allocate_state_memory;
+    state->context.free_cbk = deallocate_state_memory;
+    /* Let Argon2 wipe the password as soon as the initial block hash has consumed it */
+    state->context.flags = ARGON2_FLAG_CLEAR_PASSWORD;
+    state->type = target_type;
+    state->encodedlen = encodedlen;
+
+    int argon2_result_code = validate_inputs(&state->context);
+    if(argon2_result_code != ARGON2_OK) {
+        throw_exception(env, "de/wuthoehle/argon2jni/Argon2Exception", argon2_error_message(argon2_result_code));
+        goto cleanup_create;
+    }
+
+    /* Same memory layout as argon2_ctx uses */
+    uint32_t memory_blocks = state->context.m_cost;
+    if(memory_blocks < 2 * ARGON2_SYNC_POINTS * state->context.lanes) {
+        memory_blocks = 2 * ARGON2_SYNC_POINTS * state->context.lanes;
+    }
+    uint32_t segment_length = memory_blocks / (state->context.lanes * ARGON2_SYNC_POINTS);
+
+    state->instance.version = state->context.version;
+    state->instance.memory = NULL;
+    state->instance.passes = state->context.t_cost;
+    state->instance.memory_blocks = segment_length * (state->context.lanes * ARGON2_SYNC_POINTS);
+    state->instance.segment_length = segment_length;
+    state->instance.lane_length = segment_length * ARGON2_SYNC_POINTS;
+    state->instance.lanes = state->context.lanes;
+    state->instance.threads = 1;
+    state->instance.type = target_type;
+
+    argon2_result_code = initialize(&state->instance, &state->context);
+    if(argon2_result_code != ARGON2_OK) {
+        throw_exception(env, "de/wuthoehle/argon2jni/Argon2Exception", argon2_error_message(argon2_result_code));
+        goto cleanup_create;
+    }
+
+    state->remaining_segments = state->instance.passes * ARGON2_SYNC_POINTS * state->instance.lanes;
+
+    /* initialize already cleared the password, only the buffer itself is left */
+    wipe_memory(pwdcopy, (size_t) passwordlen);
+    free(pwdcopy);
+    state->context.pwd = NULL;
+
+    return (jlong) (intptr_t) state;
+
+    cleanup_create:
+    if(pwdcopy) {
+        wipe_memory(pwdcopy, (size_t) passwordlen);
+        free(pwdcopy);
+        state->context.pwd = NULL;
+    }
+    free_hash_state(state);
+    return 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_de_wuthoehle_argon2jni_Argon2HashState_argon2jni_1state_1step(JNIEnv *env, jclass type,
+                                                                   jlong handle, jint maxsegments) {
+    hash_state_t *state = (hash_state_t*) (intptr_t) handle;
+    jint done = 0;
+
+    /* Same order as Argon2's single threaded fill_memory_blocks: passes, then slices, then lanes */
+    while(state->remaining_segments > 0 && done < maxsegments) {
+        state->position.index = 0;
+        fill_segment(&state->instance, state->position);
+
+        state->position.lane++;
+        if(state->position.lane == state->instance.lanes) {
+            state->position.lane = 0;
+            state->position.slice++;
+            if(state->position.slice == ARGON2_SYNC_POINTS) {
+                state->position.slice = 0;
+                state->position.pass++;
+            }
+        }
+
+        state->remaining_segments--;
+        done++;
+
+        if(state->remaining_segments == 0) {
+            /* Writes the hash into context.out, then wipes and frees the Argon2 memory */
+            finalize(&state->context, &state->instance);
+            state->instance.memory = NULL;
+        }
+    }
+
+    return (jint) state->remaining_segments;
+}
+
+JNIEXPORT jobject JNICALL
+Java_de_wuthoehle_argon2jni_Argon2HashState_argon2jni_1state_1result(JNIEnv *env, jclass type, jlong handle) {
+    hash_state_t *state = (hash_state_t*) (intptr_t) handle;
+
+    if(state->remaining_segments > 0) {
+        throw_exception(env, "java/lang/IllegalStateException", "Argon2 computation has not finished yet");
+        return NULL;
+    }
+
+    if(state->encoded != NULL) {
+        int argon2_result_code = encode_string(state->encoded, (size_t) state->encodedlen, &state->context, state->type);
+        if(argon2_result_code != ARGON2_OK) {
+            throw_exception(env, "de/wuthoehle/argon2jni/Argon2Exception", argon2_error_message(argon2_result_code));
+            return NULL;
+        }
+    }
+
+    return create_result(env, state->context.out, (jsize) state->context.outlen, state->encoded);
+}
+
+JNIEXPORT void JNICALL
+Java_de_wuthoehle_argon2jni_Argon2HashState_argon2jni_1state_1free(JNIEnv *env, jclass type, jlong handle) {
+    free_hash_state((hash_state_t*) (intptr_t) handle);
+}
+
+JNIEXPORT jlong JNICALL
+Java_de_wuthoehle_argon2jni_Blake2b_argon2jni_1blake2b_1create(JNIEnv *env, jclass type, jint outlen, jbyteArray key) {
+    jsize keylen = key == NULL ? 0 : (*env)->GetArrayLength(env, key);
+    if(outlen <= 0 || outlen > BLAKE2B_OUTBYTES || keylen > BLAKE2B_KEYBYTES) {
+        throw_exception(env, "java/lang/IllegalArgumentException", "BLAKE2b output length must be between 1 and 64 bytes, key length at most 64 bytes");
+        return 0;
+    }
+
+    blake2b_state *state = (blake2b_state*) malloc(sizeof(blake2b_state));
+    if(state == NULL) {
+        throw_exception(env, "java/lang/OutOfMemoryError", "Could not allocate enough space to continue");
+        return 0;
+    }
+
+    int blake2b_result_code;
+    if(keylen > 0) {
+        uint8_t keyval[BLAKE2B_KEYBYTES];
+        (*env)->GetByteArrayRegion(env, key, 0, keylen, (jbyte*) keyval);
+        blake2b_result_code = blake2b_init_key(state, (size_t) outlen, keyval, (size_t) keylen);
+        wipe_memory(keyval, sizeof(keyval));
+    }
+    else {
+        blake2b_result_code = blake2b_init(state, (size_t) outlen);
+    }
+
+    if(blake2b_result_code != 0) {
+        free(state);
+        throw_exception(env, "java/lang/IllegalStateException", "Could not initialize BLAKE2b");
+        return 0;
+    }
+
+    return (jlong) (intptr_t) state;
+}
+
+JNIEXPORT void JNICALL
+Java_de_wuthoehle_argon2jni_Blake2b_argon2jni_1blake2b_1update(JNIEnv *env, jclass type, jlong handle,
+                                                               jbyteArray in, jint offset, jint len) {
+    blake2b_state *state = (blake2b_state*) (intptr_t) handle;
+
+    jsize arraylen = (*env)->GetArrayLength(env, in);
+    if(offset < 0 || len < 0 || offset > arraylen - len) {
+        throw_exception(env, "java/lang/ArrayIndexOutOfBoundsException", "Offset and length must lie within the given array");
+        return;
+    }
+
+    blake2b_update_array(env, state, in, offset, len);
+}
+
+JNIEXPORT void JNICALL
+Java_de_wuthoehle_argon2jni_Blake2b_argon2jni_1blake2b_1update_1direct(JNIEnv *env, jclass type, jlong handle,
+                                                                       jobject in, jint offset, jint len) {
+    blake2b_state *state = (blake2b_state*) (intptr_t) handle;
+
+    uint8_t *inval = get_direct_region(env, in, offset, len);
+    if(inval == NULL) {
+        return;
+    }
+
+    if(blake2b_update(state, inval, (size_t) len) != 0) {
+        throw_exception(env, "java/lang/IllegalStateException", "BLAKE2b state has already been finished");
+    }
+}
+
+JNIEXPORT void JNICALL
+Java_de_wuthoehle_argon2jni_Blake2b_argon2jni_1blake2b_1finish(JNIEnv *env, jclass type, jlong handle,
+                                                               jbyteArray out, jint offset) {
+    blake2b_state *state = (blake2b_state*) (intptr_t) handle;
+    uint8_t result[BLAKE2B_OUTBYTES];
+
+    jsize outlen = (jsize) state->outlen;
+    if(offset < 0 || offset > (*env)->GetArrayLength(env, out) - outlen) {
+        throw_exception(env, "java/lang/ArrayIndexOutOfBoundsException", "Output array is too small");
+        return;
+    }
+
+    if(blake2b_final(state, result, (size_t) outlen) != 0) {
+        throw_exception(env, "java/lang/IllegalStateException", "BLAKE2b state has already been finished");
+        return;
+    }
+    (*env)->SetByteArrayRegion(env, out, offset, outlen, (jbyte*) result);
+}
+
+JNIEXPORT void JNICALL
+Java_de_wuthoehle_argon2jni_Blake2b_argon2jni_1blake2b_1free(JNIEnv *env, jclass type, jlong handle) {
+    blake2b_state *state = (blake2b_state*) (intptr_t) handle;
+    if(state) {
+        /* The state may be derived from a key */
+        wipe_memory(state, sizeof(blake2b_state));
+        free(state);
+    }
+}
+
+JNIEXPORT jbyteArray JNICALL
+Java_de_wuthoehle_argon2jni_Blake2b_argon2jni_1blake2b_1batch(JNIEnv *env, jclass type, jobjectArray messages,
+                                                              jint outlen, jbyteArray key) {
+    jsize keylen = key == NULL ? 0 : (*env)->GetArrayLength(env, key);
+    if(outlen <= 0 || outlen > BLAKE2B_OUTBYTES || keylen > BLAKE2B_KEYBYTES) {
+        throw_exception(env, "java/lang/IllegalArgumentException", "BLAKE2b output length must be between 1 and 64 bytes, key length at most 64 bytes");
+        return NULL;
+    }
+
+    jsize count = (*env)->GetArrayLength(env, messages);
+    jbyteArray results = (*env)->NewByteArray(env, count * outlen);
+    if(results == NULL) {
+        /* NewByteArray already threw */
+        return NULL;
+    }
+
+    uint8_t keyval[BLAKE2B_KEYBYTES];
+    if(keylen > 0) {
+        (*env)->GetByteArrayRegion(env, key, 0, keylen, (jbyte*) keyval);
+    }
+
+    /* One JNI transition for all messages, results are concatenated */
+    blake2b_state state;
+    uint8_t result[BLAKE2B_OUTBYTES];
+    jsize i;
+    for(i = 0; i < count; i++) {
+        jbyteArray message = (jbyteArray) (*env)->GetObjectArrayElement(env, messages, i);
+        if(message == NULL) {
+            throw_exception(env, "java/lang/NullPointerException", "Messages must not be null");
+            results = NULL;
+            break;
+        }
+
+        int blake2b_result_code = keylen > 0
+                                  ? blake2b_init_key(&state, (size_t) outlen, keyval, (size_t) keylen)
+                                  : blake2b_init(&state, (size_t) outlen);
+        if(blake2b_result_code != 0) {
+            (*env)->DeleteLocalRef(env, message);
+            throw_exception(env, "java/lang/IllegalStateException", "Could not compute BLAKE2b");
+            results = NULL;
+            break;
+        }
+
+        /* Large messages are pinned chunk by chunk like in update */
+        blake2b_result_code = blake2b_update_array(env, &state, message, 0, (*env)->GetArrayLength(env, message));
+        (*env)->DeleteLocalRef(env, message);
+        if(blake2b_result_code != 0) {
+            results = NULL;
+            break;
+        }
+
+        if(blake2b_final(&state, result, (size_t) outlen) != 0) {
+            throw_exception(env, "java/lang/IllegalStateException", "Could not compute BLAKE2b");
+            results = NULL;
+            break;
+        }
+        (*env)->SetByteArrayRegion(env, results, i * outlen, outlen, (jbyte*) result);
+    }
+
+    /* The state is derived from the key */
+    wipe_memory(&state, sizeof(state));
+    wipe_memory(keyval, sizeof(keyval));
+    return results;
+}
+
+jobject hash_password(JNIEnv *env, jint t_cost, jint m_cost, jint parallelism,
+                      const void *passwordval, const jsize passwordlen, jbyteArray salt,
+                      jint hashlen, jint encodedlen, jint typeid, jint versionid) {
+
     /* Entry guard, make sure Java's type sizes match with Argon2 input/output type sizes */
     if(sizeof(jint) != sizeof(uint32_t) || sizeof(jbyte) != sizeof(uint8_t)) {
         throw_exception(env, "java/lang/Exception", "Java and Argon2 type sizes do not match");
@@ -63,6 +684,8 @@ Java_de_wuthoehle_argon2jni_Argon2_argon2jni_1hash(
     }
 
     jobject result = NULL;
+    jbyte *saltval = NULL;
+    void *target = NULL;
     char* encoded = NULL;
 
     /* Determine Argon2 algorithm type */
@@ -79,8 +702,7 @@ Java_de_wuthoehle_argon2jni_Argon2_argon2jni_1hash(
         goto cleanup_hash;
     }
 
-    /* Get Array lengths */
-    jsize passwordlen = (*env)->GetArrayLength(env, pwd);
+    /* Get Array length */
     jsize saltlen = (*env)->GetArrayLength(env, salt);
 
     /* Check for valid input sizes */
@@ -92,17 +714,16 @@ Java_de_wuthoehle_argon2jni_Argon2_argon2jni_1hash(
         return NULL;
     }
 
-    /* Get Salt and Password */
-    jbyte *passwordval = (*env)->GetByteArrayElements(env, pwd, NULL);
-    jbyte *saltval = (*env)->GetByteArrayElements(env, salt, NULL);
+    /* Get Salt */
+    saltval = (*env)->GetByteArrayElements(env, salt, NULL);
 
     /* Allocate space to store the to-be-generated hash */
-    void *target = malloc(sizeof(jbyte) * hashlen);
+    target = malloc(sizeof(jbyte) * hashlen);
     if(encodedlen > 0) {
         encoded = (char*) malloc((sizeof(char) * encodedlen) + 1);
     }
 
-    if(passwordval == NULL || saltval == NULL || target == NULL || (encoded == NULL && encodedlen > 0)) {
+    if(saltval == NULL || target == NULL || (encoded == NULL && encodedlen > 0)) {
         throw_exception(env, "java/lang/OutOfMemoryError", "Could not allocate enough space to continue");
         goto cleanup_hash;
     }
@@ -110,7 +731,7 @@ Java_de_wuthoehle_argon2jni_Argon2_argon2jni_1hash(
     /* Call Argon2 */
     int argon2_result_code = argon2_hash((const uint32_t) t_cost, (const uint32_t) m_cost,
                                          (const uint32_t) parallelism,
-                                         (const void*) passwordval, (const size_t) passwordlen,
+                                         passwordval, (const size_t) passwordlen,
                                          (const void*) saltval, (const size_t) saltlen,
                                          target, (const size_t) hashlen,
                                          encoded, (const size_t) encodedlen,
@@ -139,9 +760,6 @@ Java_de_wuthoehle_argon2jni_Argon2_argon2jni_1hash(
     }
 
     /* Free JNI variables, never copy back changes */
-    if(passwordval) {
-        (*env)->ReleaseByteArrayElements(env, pwd, passwordval, JNI_ABORT);
-    }
     if(saltval) {
         (*env)->ReleaseByteArrayElements(env, salt, saltval, JNI_ABORT);
     }
@@ -149,19 +767,15 @@ Java_de_wuthoehle_argon2jni_Argon2_argon2jni_1hash(
     return result;
 }
 
-JNIEXPORT jboolean JNICALL
-Java_de_wuthoehle_argon2jni_Argon2_argon2jni_1verify(JNIEnv *env, jclass type, jstring encoded,
-                                                     jbyteArray pwd, jint typeid) {
+jboolean verify_password(JNIEnv *env, jstring encoded, const void *pwdval, const jsize pwdlen, jint typeid) {
     jboolean result = 0;
 
     /* Get java parameter values */
     /* StringUTFChars should always be the same ones as given by argon2_hash, as the base64 encoding used is ASCII-only */
     const char *encodedval = (*env)->GetStringUTFChars(env, encoded, 0);
-    jbyte *pwdval = (*env)->GetByteArrayElements(env, pwd, NULL);
-    jsize pwdlen = (*env)->GetArrayLength(env, pwd);
 
     /* Check whether values got actually allocated */
-    if(encodedval == NULL || pwdval == NULL) {
+    if(encodedval == NULL) {
         throw_exception(env, "java/lang/OutOfMemoryError", "Could not allocate enough space to continue");
         goto cleanup_verify;
     }
@@ -179,7 +793,7 @@ Java_de_wuthoehle_argon2jni_Argon2_argon2jni_1verify(JNIEnv *env, jclass type, j
         goto cleanup_verify;
     }
 
-    int argon2_result_code = argon2_verify(encodedval, (const void*) pwdval, (const size_t) pwdlen, argon2_type);
+    int argon2_result_code = argon2_verify(encodedval, pwdval, (const size_t) pwdlen, argon2_type);
     if(argon2_result_code == ARGON2_OK) {
         result = 1;
         goto cleanup_verify;
@@ -198,13 +812,181 @@ Java_de_wuthoehle_argon2jni_Argon2_argon2jni_1verify(JNIEnv *env, jclass type, j
     if(encodedval) {
         (*env)->ReleaseStringUTFChars(env, encoded, encodedval);
     }
-    if(pwdval) {
-        (*env)->ReleaseByteArrayElements(env, pwd, pwdval, JNI_ABORT);
-    }
 
     return result;
 }
 
+int encode_password(JNIEnv *env, jcharArray pwd, const jint pwdoffset, const jint pwdlen, password_buffer_t *password) {
+    password->chars = password->stack_chars;
+    password->utf8 = password->stack_utf8;
+    password->utf8len = 0;
+
+    /* Check bounds before touching the array */
+    jsize arraylen = (*env)->GetArrayLength(env, pwd);
+    if(pwdoffset < 0 || pwdlen < 0 || pwdoffset > arraylen - pwdlen) {
+        throw_exception(env, "java/lang/ArrayIndexOutOfBoundsException", "Password offset and length must lie within the given array");
+        return 0;
+    }
+
+    /* Short passwords stay on the stack, longer ones get a scratch buffer. UTF-8 needs at most 3 bytes per UTF-16 code unit. */
+    if(pwdlen > ARGON2JNI_STACK_PASSWORD_CHARS) {
+        password->chars = (jchar*) malloc(sizeof(jchar) * pwdlen);
+        password->utf8 = (uint8_t*) malloc(sizeof(uint8_t) * pwdlen * 3);
+        if(password->chars == NULL || password->utf8 == NULL) {
+            /* Nothing has been copied yet, so there is nothing to wipe */
+            free(password->chars);
+            free(password->utf8);
+            password->chars = NULL;
+            password->utf8 = NULL;
+            throw_exception(env, "java/lang/OutOfMemoryError", "Could not allocate enough space to continue");
+            return 0;
+        }
+    }
+
+    (*env)->GetCharArrayRegion(env, pwd, pwdoffset, pwdlen, password->chars);
+    password->utf8len = utf16_to_utf8(password->chars, pwdlen, password->utf8);
+
+    /* The UTF-16 copy is not needed anymore */
+    wipe_memory(password->chars, sizeof(jchar) * pwdlen);
+    if(password->chars != password->stack_chars) {
+        free(password->chars);
+    }
+    password->chars = NULL;
+
+    return 1;
+}
+
+void release_password(password_buffer_t *password) {
+    if(password->utf8 == password->stack_utf8) {
+        wipe_memory(password->utf8, sizeof(password->stack_utf8));
+    }
+    else if(password->utf8) {
+        wipe_memory(password->utf8, (size_t) password->utf8len);
+        free(password->utf8);
+    }
+    password->utf8 = NULL;
+    password->utf8len = 0;
+}
+
+jsize utf16_to_utf8(const jchar *src, const jsize srclen, uint8_t *dst) {
+    jsize in = 0;
+    jsize out = 0;
+
+    while(in < srclen) {
+        uint32_t codepoint = src[in++];
+
+        if(codepoint >= 0xD800 && codepoint <= 0xDBFF && in < srclen && src[in] >= 0xDC00 && src[in] <= 0xDFFF) {
+            /* Valid surrogate pair */
+            codepoint = 0x10000 + ((codepoint - 0xD800) << 10) + (src[in++] - 0xDC00);
+        }
+        else if(codepoint >= 0xD800 && codepoint <= 0xDFFF) {
+            /* Unpaired surrogate, replace it the same way String.getBytes("UTF-8") does */
+            codepoint = '?';
+        }
+
+        if(codepoint < 0x80) {
+            dst[out++] = (uint8_t) codepoint;
+        }
+        else if(codepoint < 0x800) {
+            dst[out++] = (uint8_t) (0xC0 | (codepoint >> 6));
+            dst[out++] = (uint8_t) (0x80 | (codepoint & 0x3F));
+        }
+        else if(codepoint < 0x10000) {
+            dst[out++] = (uint8_t) (0xE0 | (codepoint >> 12));
+            dst[out++] = (uint8_t) (0x80 | ((codepoint >> 6) & 0x3F));
+            dst[out++] = (uint8_t) (0x80 | (codepoint & 0x3F));
+        }
+        else {
+            dst[out++] = (uint8_t) (0xF0 | (codepoint >> 18));
+            dst[out++] = (uint8_t) (0x80 | ((codepoint >> 12) & 0x3F));
+            dst[out++] = (uint8_t) (0x80 | ((codepoint >> 6) & 0x3F));
+            dst[out++] = (uint8_t) (0x80 | (codepoint & 0x3F));
+        }
+    }
+
+    return out;
+}
+
+void wipe_memory(void *memory, const size_t size) {
+    /* Write through a volatile pointer so the compiler cannot drop the stores */
+    volatile uint8_t *p = (volatile uint8_t*) memory;
+    size_t i;
+    for(i = 0; i < size; i++) {
+        p[i] = 0;
+    }
+}
+
+uint8_t* get_direct_region(JNIEnv *env, jobject buffer, const jint offset, const jint len) {
+    uint8_t *address = (uint8_t*) (*env)->GetDirectBufferAddress(env, buffer);
+    if(address == NULL) {
+        throw_exception(env, "java/lang/IllegalArgumentException", "Buffer must be a direct buffer");
+        return NULL;
+    }
+
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+    if(offset < 0 || len < 0 || (jlong) offset + len > capacity) {
+        throw_exception(env, "java/lang/IndexOutOfBoundsException", "Region must lie within the buffer");
+        return NULL;
+    }
+
+    return address + offset;
+}
+
+int blake2b_update_array(JNIEnv *env, blake2b_state *state, jbyteArray in, jint offset, jint len) {
+    while(len > 0) {
+        jint chunklen = len < ARGON2JNI_CRITICAL_CHUNK ? len : ARGON2JNI_CRITICAL_CHUNK;
+
+        /* Hashing does not block and calls back into nothing, so the array can be accessed without copying it */
+        uint8_t *inval = (uint8_t*) (*env)->GetPrimitiveArrayCritical(env, in, NULL);
+        if(inval == NULL) {
+            throw_exception(env, "java/lang/OutOfMemoryError", "Could not allocate enough space to continue");
+            return -1;
+        }
+        int blake2b_result_code = blake2b_update(state, inval + offset, (size_t) chunklen);
+        (*env)->ReleasePrimitiveArrayCritical(env, in, inval, JNI_ABORT);
+
+        if(blake2b_result_code != 0) {
+            throw_exception(env, "java/lang/IllegalStateException", "BLAKE2b state has already been finished");
+            return -1;
+        }
+        offset += chunklen;
+        len -= chunklen;
+    }
+    return 0;
+}
+
+void free_hash_state(hash_state_t *state) {
+    if(state == NULL) {
+        return;
+    }
+
+    /* Unfinished computation, Argon2 still holds its memory */
+    if(state->instance.memory) {
+        deallocate_state_memory((uint8_t*) state->instance.memory, sizeof(block) * state->instance.memory_blocks);
+    }
+    if(state->context.out) {
+        wipe_memory(state->context.out, state->context.outlen);
+        free(state->context.out);
+    }
+    if(state->context.salt) {
+        free(state->context.salt);
+    }
+    if(state->encoded) {
+        free(state->encoded);
+    }
+    free(state);
+}
+
+int allocate_state_memory(uint8_t **memory, size_t bytes_to_allocate) {
+    *memory = (uint8_t*) malloc(bytes_to_allocate);
+    return *memory == NULL ? ARGON2_MEMORY_ALLOCATION_ERROR : ARGON2_OK;
+}
+
+void deallocate_state_memory(uint8_t *memory, size_t bytes_to_allocate) {
+    wipe_memory(memory, bytes_to_allocate);
+    free(memory);
+}
+
 jint throw_exception(JNIEnv *env, const char *exception, const char *message) {
     jclass exceptionClass = (*env)->FindClass(env, exception);
     if (exceptionClass == NULL) {
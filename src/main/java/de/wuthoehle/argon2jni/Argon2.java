@@ -8,7 +8,12 @@ package de.wuthoehle.argon2jni;
  */
 
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.ReadOnlyBufferException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 
 /**
  * Java part of argon2jni. Define native methods and a Java API.
@@ -113,13 +118,7 @@ public class Argon2 {
      * @return Object containing the raw hash and an encoded version
      */
     public EncodedArgon2Result argon2_hash(byte[] pwd) {
-        // Generate a random salt
-        byte[] salt = new byte[16];
-
-        Argon2.ensureRandom();
-        Argon2.random.nextBytes(salt);
-
-        return this.argon2_hash(pwd, salt);
+        return this.argon2_hash(pwd, Argon2.generateSalt());
     }
 
     /**
@@ -137,13 +136,90 @@ public class Argon2 {
     }
 
     public Argon2Result argon2_hash_raw(byte[] pwd) {
-        // Generate a random salt
-        byte[] salt = new byte[16];
+        return this.argon2_hash_raw(pwd, Argon2.generateSalt());
+    }
 
-        Argon2.ensureRandom();
-        Argon2.random.nextBytes(salt);
+    /**
+     * Call Argon2 on direct buffers without copying password, salt or result between Java and native memory.
+     * The remaining bytes of pwd and salt are used, their positions are not changed.
+     * The raw hash is written to out at its current position, which is advanced by the hash length.
+     * <br><b>WARNING!</b> Be sure to use a constant-time comparison function when verifying the hash!
+     * @param pwd Direct buffer containing the password to hash
+     * @param salt Direct buffer containing the salt to use
+     * @param out Direct buffer receiving the raw hash
+     */
+    public void argon2_hash_raw(ByteBuffer pwd, ByteBuffer salt, ByteBuffer out) {
+        Argon2.ensureDirect(pwd);
+        Argon2.ensureDirect(salt);
+        Argon2.ensureDirect(out);
+        if(out.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+        if(out.remaining() < this.hashlen) {
+            throw new BufferOverflowException();
+        }
 
-        return this.argon2_hash_raw(pwd, salt);
+        argon2jni_hash_direct(
+                this.securityParameters.t_cost, this.securityParameters.m_cost, this.securityParameters.parallelism,
+                pwd, pwd.position(), pwd.remaining(),
+                salt, salt.position(), salt.remaining(),
+                out, out.position(), this.hashlen,
+                this.typeid, this.versionid
+        );
+        out.position(out.position() + this.hashlen);
+    }
+
+    /**
+     * Call Argon2's verify function on the remaining bytes of a direct buffer without copying them.
+     * The buffer's position is not changed.
+     * @param encoded Encoded Argon2 hash
+     * @param pwd Direct buffer containing the password to check
+     * @return true if password is valid, otherwise false
+     */
+    public boolean argon2_verify(String encoded, ByteBuffer pwd) {
+        Argon2.ensureDirect(pwd);
+        return argon2jni_verify_direct(encoded, pwd, pwd.position(), pwd.remaining(), this.typeid);
+    }
+
+    /**
+     * Prepare an Argon2 computation which is advanced step by step instead of blocking until it has finished.
+     * The result is the same as the one of argon2_hash. Close the returned state if it is not needed anymore.
+     * @param pwd Password to hash
+     * @param salt Salt to use
+     * @return Resumable computation, its result contains the raw hash and an encoded version
+     * @see #argon2_hash(byte[], byte[])
+     */
+    public Argon2HashState argon2_hash_stepwise(byte[] pwd, byte[] salt) {
+        return new Argon2HashState(
+                this.securityParameters.t_cost, this.securityParameters.m_cost, this.securityParameters.parallelism,
+                pwd, salt, this.hashlen,
+                this.determineValidEncodedLen(salt),
+                this.typeid, this.versionid
+        );
+    }
+
+    /**
+     * Prepare a step-wise Argon2 computation using a random salt
+     * @param pwd Password to hash
+     * @return Resumable computation, its result contains the raw hash and an encoded version
+     * @see #argon2_hash_stepwise(byte[], byte[])
+     */
+    public Argon2HashState argon2_hash_stepwise(byte[] pwd) {
+        return this.argon2_hash_stepwise(pwd, Argon2.generateSalt());
+    }
+
+    /**
+     * Prepare a step-wise Argon2 computation whose result only contains the raw hash value
+     * <br><b>WARNING!</b> Be sure to use a constant-time comparison function when verifying the hash!
+     * @param pwd Password to hash
+     * @param salt Salt to use
+     * @return Resumable computation, its result contains the raw hash
+     */
+    public Argon2HashState argon2_hash_raw_stepwise(byte[] pwd, byte[] salt) {
+        return new Argon2HashState(
+                this.securityParameters.t_cost, this.securityParameters.m_cost, this.securityParameters.parallelism,
+                pwd, salt, this.hashlen, 0, this.typeid, this.versionid
+        );
     }
 
     /**
@@ -156,17 +232,117 @@ public class Argon2 {
         return argon2jni_verify(encoded, pwd, this.typeid);
     }
 
+    /**
+     * Call Argon2 and get a result object containing the raw hash and an encoded version.
+     * The password is encoded as UTF-8 inside the native library and wiped right after hashing.
+     * @param pwd Password to hash
+     * @param salt Salt to use
+     * @return Object containing the raw hash and an encoded version
+     * @see #argon2_hash(byte[], byte[])
+     */
+    public EncodedArgon2Result argon2_hash(char[] pwd, byte[] salt) {
+        return (EncodedArgon2Result) this.hashChars(pwd, 0, pwd.length, salt, this.determineValidEncodedLen(salt));
+    }
+
+    /**
+     * Call Argon2 using a random salt and get a result object containing the raw hash and an encoded version.
+     * The password is encoded as UTF-8 inside the native library and wiped right after hashing.
+     * @param pwd Password to hash
+     * @return Object containing the raw hash and an encoded version
+     * @see #argon2_hash(byte[])
+     */
+    public EncodedArgon2Result argon2_hash(char[] pwd) {
+        return this.argon2_hash(pwd, Argon2.generateSalt());
+    }
+
+    /**
+     * Call Argon2 on the remaining chars of a buffer. The buffer's position is not changed.
+     * @param pwd Password to hash
+     * @param salt Salt to use
+     * @return Object containing the raw hash and an encoded version
+     * @see #argon2_hash(char[], byte[])
+     */
+    public EncodedArgon2Result argon2_hash(CharBuffer pwd, byte[] salt) {
+        return (EncodedArgon2Result) this.hashChars(pwd, salt, this.determineValidEncodedLen(salt));
+    }
+
+    /**
+     * Call Argon2 on the remaining chars of a buffer using a random salt. The buffer's position is not changed.
+     * @param pwd Password to hash
+     * @return Object containing the raw hash and an encoded version
+     * @see #argon2_hash(char[])
+     */
+    public EncodedArgon2Result argon2_hash(CharBuffer pwd) {
+        return this.argon2_hash(pwd, Argon2.generateSalt());
+    }
+
+    /**
+     * Call Argon2 and get a result object containing only the raw hash value
+     * <br><b>WARNING!</b> Be sure to use a constant-time comparison function when verifying the hash!
+     * @param pwd Password to hash, encoded as UTF-8 inside the native library
+     * @param salt Salt to use
+     * @return Object containing the raw hash
+     */
+    public Argon2Result argon2_hash_raw(char[] pwd, byte[] salt) {
+        return this.hashChars(pwd, 0, pwd.length, salt, 0);
+    }
+
+    public Argon2Result argon2_hash_raw(char[] pwd) {
+        return this.argon2_hash_raw(pwd, Argon2.generateSalt());
+    }
+
+    /**
+     * Call Argon2 on the remaining chars of a buffer and get a result object containing only the raw hash value.
+     * The buffer's position is not changed.
+     * <br><b>WARNING!</b> Be sure to use a constant-time comparison function when verifying the hash!
+     * @param pwd Password to hash
+     * @param salt Salt to use
+     * @return Object containing the raw hash
+     */
+    public Argon2Result argon2_hash_raw(CharBuffer pwd, byte[] salt) {
+        return this.hashChars(pwd, salt, 0);
+    }
+
+    public Argon2Result argon2_hash_raw(CharBuffer pwd) {
+        return this.argon2_hash_raw(pwd, Argon2.generateSalt());
+    }
+
+    /**
+     * Call Argon2's verify function to check whether the password specified matches the encoded one
+     * @param encoded Encoded Argon2 hash
+     * @param pwd Password to check, encoded as UTF-8 inside the native library
+     * @return true if password is valid, otherwise false
+     */
+    public boolean argon2_verify(String encoded, char[] pwd) {
+        return argon2jni_verify_chars(encoded, pwd, 0, pwd.length, this.typeid);
+    }
+
+    /**
+     * Call Argon2's verify function on the remaining chars of a buffer. The buffer's position is not changed.
+     * @param encoded Encoded Argon2 hash
+     * @param pwd Password to check
+     * @return true if password is valid, otherwise false
+     */
+    public boolean argon2_verify(String encoded, CharBuffer pwd) {
+        if(pwd.hasArray()) {
+            return argon2jni_verify_chars(encoded, pwd.array(), pwd.arrayOffset() + pwd.position(), pwd.remaining(), this.typeid);
+        }
+
+        char[] copy = Argon2.copyChars(pwd);
+        try {
+            return argon2jni_verify_chars(encoded, copy, 0, copy.length, this.typeid);
+        } finally {
+            Arrays.fill(copy, '\0');
+        }
+    }
+
     /**
      * Call Argon2's hash function using all default values
      * @param pwd Password to hash
      * @return Object containing the raw hash and an encoded version
      */
     public static EncodedArgon2Result argon2_quick_hash(byte[] pwd) {
-        // Generate a random salt
-        byte[] salt = new byte[16];
-
-        Argon2.ensureRandom();
-        Argon2.random.nextBytes(salt);
+        byte[] salt = Argon2.generateSalt();
 
         return (EncodedArgon2Result) Argon2.argon2jni_hash(
                 SecurityParameterTemplates.OFFICIAL_DEFAULT.t_cost,
@@ -191,6 +367,36 @@ public class Argon2 {
         return argon2jni_verify(encoded, pwd, Argon2.DefaultTypeIdentifier);
     }
 
+    /**
+     * Call Argon2's hash function using all default values
+     * @param pwd Password to hash, encoded as UTF-8 inside the native library
+     * @return Object containing the raw hash and an encoded version
+     */
+    public static EncodedArgon2Result argon2_quick_hash(char[] pwd) {
+        byte[] salt = Argon2.generateSalt();
+
+        return (EncodedArgon2Result) Argon2.argon2jni_hash_chars(
+                SecurityParameterTemplates.OFFICIAL_DEFAULT.t_cost,
+                SecurityParameterTemplates.OFFICIAL_DEFAULT.m_cost,
+                SecurityParameterTemplates.OFFICIAL_DEFAULT.parallelism,
+                pwd, 0, pwd.length,
+                salt,
+                Argon2.DefaultHashlen,
+                Argon2.determineValidEncodedLen(Argon2.DefaultSecurityParameterTemplate,
+                        Argon2.DefaultHashlen, Argon2.DefaultVersionIdentifier, salt),
+                Argon2.DefaultTypeIdentifier, Argon2.DefaultVersionIdentifier);
+    }
+
+    /**
+     * Call Argon2's verify function using all default values
+     * @param encoded Encoded Argon2 hash
+     * @param pwd Password to check, encoded as UTF-8 inside the native library
+     * @return true if password is valid, otherwise false
+     */
+    public static boolean argon2_quick_verify(String encoded, char[] pwd) {
+        return argon2jni_verify_chars(encoded, pwd, 0, pwd.length, Argon2.DefaultTypeIdentifier);
+    }
+
     /**
      * Used to make sure the RNG was initialized. Used for test cases.
      * @return Whether Argon2.random was initialized (not null)
@@ -237,6 +443,87 @@ public class Argon2 {
      */
     private static native boolean argon2jni_verify(String encoded, byte[] pwd, int typeid);
 
+    /**
+     * Same as argon2jni_hash, but takes the password as a char[] region which is encoded as UTF-8
+     * into a native scratch buffer. The scratch buffer is wiped as soon as Argon2 returns.
+     * @param pwdoffset Index of the first password char
+     * @param pwdlen Number of password chars
+     * @see #argon2jni_hash(int, int, int, byte[], byte[], int, int, int, int)
+     */
+    private static native Argon2Result argon2jni_hash_chars(int t_cost, int m_cost, int parallelism,
+                                                    char[] pwd, int pwdoffset, int pwdlen, byte[] salt,
+                                                    int hashlen, int encodedlen,
+                                                    int typeid, int versionid);
+
+    /**
+     * Same as argon2jni_verify, but takes the password as a char[] region which is encoded as UTF-8
+     * into a native scratch buffer. The scratch buffer is wiped as soon as Argon2 returns.
+     * @param pwdoffset Index of the first password char
+     * @param pwdlen Number of password chars
+     * @see #argon2jni_verify(String, byte[], int)
+     */
+    private static native boolean argon2jni_verify_chars(String encoded, char[] pwd, int pwdoffset, int pwdlen, int typeid);
+
+    /**
+     * Raw hash of direct buffer regions. Argon2 works on the buffers' memory without any copies.
+     * @param pwdoffset Offset of the password within pwd
+     * @param saltoffset Offset of the salt within salt
+     * @param outoffset Offset within out where hashlen bytes of raw hash are written to
+     * @see #argon2jni_hash(int, int, int, byte[], byte[], int, int, int, int)
+     */
+    private static native void argon2jni_hash_direct(int t_cost, int m_cost, int parallelism,
+                                                     ByteBuffer pwd, int pwdoffset, int pwdlen,
+                                                     ByteBuffer salt, int saltoffset, int saltlen,
+                                                     ByteBuffer out, int outoffset, int hashlen,
+                                                     int typeid, int versionid);
+
+    /**
+     * Same as argon2jni_verify, but reads the password directly from a direct buffer region
+     * @see #argon2jni_verify(String, byte[], int)
+     */
+    private static native boolean argon2jni_verify_direct(String encoded, ByteBuffer pwd, int pwdoffset, int pwdlen, int typeid);
+
+    /**
+     * Verify a password against a raw salt and hash stored within a direct buffer, e.g. a memory-mapped
+     * Argon2HashStore. Salt and hash are read in place, the hash comparison is constant-time.
+     * @param record Direct buffer holding salt and hash
+     * @param saltoffset Offset of the salt within record
+     * @param hashoffset Offset of the expected hash within record
+     * @return true if password is valid, otherwise false
+     * @see Argon2HashStore#verify(String, byte[])
+     */
+    static native boolean argon2jni_verify_raw_direct(ByteBuffer record, int saltoffset, int saltlen,
+                                                      int hashoffset, int hashlen,
+                                                      int t_cost, int m_cost, int parallelism,
+                                                      byte[] pwd, int typeid, int versionid);
+
+    /**
+     * Hash a char[] region using this instance's parameters
+     */
+    private Argon2Result hashChars(char[] pwd, int pwdoffset, int pwdlen, byte[] salt, int encodedlen) {
+        return argon2jni_hash_chars(
+                this.securityParameters.t_cost, this.securityParameters.m_cost, this.securityParameters.parallelism,
+                pwd, pwdoffset, pwdlen, salt, this.hashlen, encodedlen, this.typeid, this.versionid
+        );
+    }
+
+    /**
+     * Hash the remaining chars of a buffer using this instance's parameters. Buffers without an
+     * accessible array are copied into a temporary char[], which is cleared afterwards.
+     */
+    private Argon2Result hashChars(CharBuffer pwd, byte[] salt, int encodedlen) {
+        if(pwd.hasArray()) {
+            return this.hashChars(pwd.array(), pwd.arrayOffset() + pwd.position(), pwd.remaining(), salt, encodedlen);
+        }
+
+        char[] copy = Argon2.copyChars(pwd);
+        try {
+            return this.hashChars(copy, 0, copy.length, salt, encodedlen);
+        } finally {
+            Arrays.fill(copy, '\0');
+        }
+    }
+
     /**
      * Helper function to determine a value for the encodedlen parameter, which is sufficient to hold the resulting encoded hash
      * @param salt Salt used to calculate the encoded hash
@@ -276,6 +563,28 @@ public class Argon2 {
         return encodedlen;
     }
 
+    private static void ensureDirect(ByteBuffer buffer) {
+        if(! buffer.isDirect()) {
+            throw new IllegalArgumentException("Buffer must be a direct buffer");
+        }
+    }
+
+    private static char[] copyChars(CharBuffer pwd) {
+        char[] copy = new char[pwd.remaining()];
+        pwd.duplicate().get(copy);
+        return copy;
+    }
+
+    private static byte[] generateSalt() {
+        // Generate a random salt
+        byte[] salt = new byte[16];
+
+        Argon2.ensureRandom();
+        Argon2.random.nextBytes(salt);
+
+        return salt;
+    }
+
     private static void ensureRandom() {
         if(Argon2.random == null) {
             Argon2.random = new SecureRandom();
@@ -0,0 +1,450 @@
+package de.wuthoehle.argon2jni;
+/*
+ * Copyright (c) Marco Huenseler
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Hash a stream of records (e.g. stored credentials during a migration) using a bounded number of worker threads.
+ * Records are read only as fast as they are hashed, results are written in input order and progress is
+ * checkpointed, so an interrupted run can be resumed.
+ * <br>The number of workers is capped so at most maxNativeMemoryKiB of Argon2 memory is in use, each hash uses
+ * m_cost KiB.
+ * <br>Only records with an empty input are reported as failed. Any other Argon2 failure (e.g. running out of
+ * memory) aborts the run before the checkpoint moves past the record.
+ * <br>Records hashed after the last checkpoint are hashed and written again when resuming, so sinks should
+ * treat a later result for the same key as authoritative.
+ * @author Marco Huenseler
+ * @version 0.1
+ */
+public class Argon2BulkRehasher {
+    public static final int DefaultCheckpointInterval = 1000;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * A single input value identified by a key. The input is cleared after it has been hashed.
+     */
+    public static final class Record {
+        private final String key;
+        private final byte[] input;
+
+        public Record(String key, byte[] input) {
+            if(key == null || input == null) {
+                throw new NullPointerException("Key and input must not be null");
+            }
+            this.key = key;
+            this.input = input;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public byte[] getInput() {
+            return input;
+        }
+    }
+
+    /**
+     * Supplies records in a stable order
+     */
+    public interface RecordSource {
+        /**
+         * @return The next record or null if there are no more records
+         * @throws IOException if the record could not be read
+         */
+        Record next() throws IOException;
+    }
+
+    /**
+     * Receives results in input order. Calls are made from a single thread.
+     */
+    public interface RecordSink {
+        void write(String key, EncodedArgon2Result result) throws IOException;
+
+        /**
+         * Called for records which can not be hashed because their input is empty
+         */
+        void fail(String key, RuntimeException cause) throws IOException;
+
+        /**
+         * Make everything written so far durable. Called before each checkpoint.
+         */
+        void flush() throws IOException;
+    }
+
+    /**
+     * Persists the number of records which have been written to the sink
+     */
+    public interface Checkpoint {
+        long load() throws IOException;
+
+        void save(long committed) throws IOException;
+    }
+
+    public interface ProgressListener {
+        void onProgress(Progress progress);
+    }
+
+    public static final class Progress {
+        private final long committed;
+        private final long failed;
+        private final long skipped;
+        private final long elapsedNanos;
+
+        Progress(long committed, long failed, long skipped, long elapsedNanos) {
+            this.committed = committed;
+            this.failed = failed;
+            this.skipped = skipped;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return Records written to the sink during this run, including failed ones
+         */
+        public long getCommitted() {
+            return committed;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return Records skipped because a previous run already committed them
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double getRecordsPerSecond() {
+            return elapsedNanos == 0 ? 0 : committed / (elapsedNanos / 1e9);
+        }
+    }
+
+    private final Argon2 argon2;
+    private final int workers;
+    private int checkpointInterval = DefaultCheckpointInterval;
+
+    /**
+     * Construct a rehasher
+     * @param securityParameters SecurityParameters (t_cost, m_cost, parallelism) to use
+     * @param hashlen Desired hash output length in bytes
+     * @param typeid Argon2 algorithm type to use
+     * @param versionid Argon2 version to use
+     * @param workers Maximum number of records hashed at the same time
+     * @param maxNativeMemoryKiB Upper bound for the Argon2 memory of all workers in KiB, reduces the number of workers if needed
+     * @throws IllegalArgumentException if Argon2 would reject the parameters or there is not enough memory for one worker
+     * @see Argon2#Argon2(SecurityParameters, int, int, int)
+     */
+    public Argon2BulkRehasher(SecurityParameters securityParameters, int hashlen, int typeid, int versionid,
+                              int workers, long maxNativeMemoryKiB) {
+        // Checked up front, otherwise every single record would fail and still be checkpointed
+        if(securityParameters.t_cost <= 0 || securityParameters.parallelism <= 0
+                || securityParameters.parallelism > 0xFFFFFF
+                || securityParameters.m_cost < 8L * securityParameters.parallelism) {
+            throw new IllegalArgumentException("t_cost and parallelism must be positive, m_cost at least 8 KiB per lane");
+        }
+        if(hashlen < 4) {
+            throw new IllegalArgumentException("Argon2 hash length must be at least 4 bytes");
+        }
+        Argon2HashRecord.typeName(typeid);
+        if(versionid != Argon2.VersionIdentifiers.VERSION_10 && versionid != Argon2.VersionIdentifiers.VERSION_13) {
+            throw new IllegalArgumentException("Argon2 version must be a valid algorithm version ID");
+        }
+        if(workers <= 0 || maxNativeMemoryKiB < securityParameters.m_cost) {
+            throw new IllegalArgumentException("At least one worker with enough memory for m_cost is needed");
+        }
+
+        this.argon2 = new Argon2(securityParameters, hashlen, typeid, versionid);
+        this.workers = (int) Math.min(workers, maxNativeMemoryKiB / securityParameters.m_cost);
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * @param checkpointInterval Number of records after which the sink is flushed, a checkpoint is saved and progress is reported
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        if(checkpointInterval <= 0) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive");
+        }
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * Hash all records of source and write them to sink. If the checkpoint contains a previous state,
+     * the records committed back then are skipped.
+     * @param source Records to hash, must return them in the same order when resuming
+     * @param sink Receives the results in input order
+     * @param checkpoint Checkpoint to resume from and to update, may be null
+     * @param listener Receives progress after each checkpoint interval and at the end, may be null
+     * @return Final progress of this run
+     * @throws IOException if reading, writing or checkpointing failed
+     * @throws InterruptedException if the calling thread was interrupted while waiting for a worker
+     * @throws IllegalStateException if Argon2 failed for a reason other than an empty input
+     */
+    public Progress run(RecordSource source, RecordSink sink, Checkpoint checkpoint, ProgressListener listener)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long skipped = checkpoint == null ? 0 : checkpoint.load();
+        for(long i = 0; i < skipped; i++) {
+            Record record = source.next();
+            if(record == null) {
+                break;
+            }
+            Arrays.fill(record.input, (byte) 0);
+        }
+
+        // Backpressure: at most two records per worker are read ahead
+        int window = this.workers * 2;
+        ArrayDeque<Pending> inFlight = new ArrayDeque<Pending>(window);
+        ExecutorService executor = Executors.newFixedThreadPool(this.workers);
+        long[] counters = new long[2]; // committed, failed
+
+        try {
+            Record record;
+            while((record = source.next()) != null) {
+                inFlight.add(new Pending(executor.submit(new HashTask(this.argon2, record)), record));
+                if(inFlight.size() >= window) {
+                    this.commit(inFlight.peek().future, sink, checkpoint, listener, counters, skipped, start);
+                    inFlight.poll();
+                }
+            }
+            while(! inFlight.isEmpty()) {
+                this.commit(inFlight.peek().future, sink, checkpoint, listener, counters, skipped, start);
+                inFlight.poll();
+            }
+
+            sink.flush();
+            if(checkpoint != null) {
+                checkpoint.save(skipped + counters[0]);
+            }
+        } finally {
+            // Only left over if the run failed: drop queued records without leaving their inputs on the heap
+            for(Pending pending : inFlight) {
+                pending.future.cancel(true);
+                Arrays.fill(pending.record.input, (byte) 0);
+            }
+            executor.shutdownNow();
+        }
+
+        Progress progress = new Progress(counters[0], counters[1], skipped, System.nanoTime() - start);
+        if(listener != null) {
+            listener.onProgress(progress);
+        }
+        return progress;
+    }
+
+    private void commit(Future<Outcome> future, RecordSink sink, Checkpoint checkpoint, ProgressListener listener,
+                        long[] counters, long skipped, long start) throws IOException, InterruptedException {
+        Outcome outcome;
+        try {
+            outcome = future.get();
+        } catch(ExecutionException e) {
+            // Not caused by the record, so the run stops without checkpointing past it
+            throw new IllegalStateException("Hashing worker failed", e.getCause());
+        }
+
+        if(outcome.result != null) {
+            sink.write(outcome.key, outcome.result);
+        } else {
+            sink.fail(outcome.key, outcome.failure);
+            counters[1]++;
+        }
+        counters[0]++;
+
+        if(counters[0] % this.checkpointInterval == 0) {
+            sink.flush();
+            if(checkpoint != null) {
+                checkpoint.save(skipped + counters[0]);
+            }
+            if(listener != null) {
+                listener.onProgress(new Progress(counters[0], counters[1], skipped, System.nanoTime() - start));
+            }
+        }
+    }
+
+    private static final class Pending {
+        final Future<Outcome> future;
+        final Record record;
+
+        Pending(Future<Outcome> future, Record record) {
+            this.future = future;
+            this.record = record;
+        }
+    }
+
+    private static final class Outcome {
+        final String key;
+        final EncodedArgon2Result result;
+        final RuntimeException failure;
+
+        Outcome(String key, EncodedArgon2Result result, RuntimeException failure) {
+            this.key = key;
+            this.result = result;
+            this.failure = failure;
+        }
+    }
+
+    private static final class HashTask implements Callable<Outcome> {
+        private final Argon2 argon2;
+        private final Record record;
+
+        HashTask(Argon2 argon2, Record record) {
+            this.argon2 = argon2;
+            this.record = record;
+        }
+
+        @Override
+        public Outcome call() {
+            try {
+                if(record.input.length == 0) {
+                    return new Outcome(record.key, null, new IllegalArgumentException("Input must not be empty"));
+                }
+                return new Outcome(record.key, argon2.argon2_hash(record.input), null);
+            } finally {
+                Arrays.fill(record.input, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Adapt an iterator to a RecordSource
+     * @param iterator Records to hash
+     * @return RecordSource returning the iterator's elements
+     */
+    public static RecordSource fromIterator(final Iterator<Record> iterator) {
+        return new RecordSource() {
+            @Override
+            public Record next() {
+                return iterator.hasNext() ? iterator.next() : null;
+            }
+        };
+    }
+
+    /**
+     * Read records from lines of the form "key TAB input". The input's UTF-8 bytes are hashed.
+     * @param reader Reader to read from
+     * @return RecordSource reading from reader
+     */
+    public static RecordSource tabSeparatedSource(final BufferedReader reader) {
+        return new RecordSource() {
+            @Override
+            public Record next() throws IOException {
+                String line = reader.readLine();
+                if(line == null) {
+                    return null;
+                }
+
+                int separator = line.indexOf('\t');
+                if(separator < 0) {
+                    throw new IOException("Missing tab separator in input line");
+                }
+                return new Record(line.substring(0, separator), line.substring(separator + 1).getBytes(UTF8));
+            }
+        };
+    }
+
+    /**
+     * Write results as lines of the form "key TAB encoded hash". Failed records are written as "key TAB !message".
+     * @param writer Writer to write to, flushed at each checkpoint
+     * @return RecordSink writing to writer
+     */
+    public static RecordSink tabSeparatedSink(final Writer writer) {
+        return new RecordSink() {
+            @Override
+            public void write(String key, EncodedArgon2Result result) throws IOException {
+                writer.write(key);
+                writer.write('\t');
+                writer.write(result.getEncoded());
+                writer.write('\n');
+            }
+
+            @Override
+            public void fail(String key, RuntimeException cause) throws IOException {
+                writer.write(key);
+                writer.write("\t!");
+                writer.write(String.valueOf(cause.getMessage()).replace('\n', ' '));
+                writer.write('\n');
+            }
+
+            @Override
+            public void flush() throws IOException {
+                writer.flush();
+            }
+        };
+    }
+
+    /**
+     * Checkpoint stored as a decimal number in a file. The file is replaced atomically where the platform allows it.
+     * @param file File to store the checkpoint in
+     * @return Checkpoint backed by file
+     */
+    public static Checkpoint fileCheckpoint(final File file) {
+        return new Checkpoint() {
+            @Override
+            public long load() throws IOException {
+                if(! file.exists()) {
+                    return 0;
+                }
+
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+                try {
+                    String line = reader.readLine();
+                    return line == null ? 0 : Long.parseLong(line.trim());
+                } catch(NumberFormatException e) {
+                    throw new IOException("Invalid checkpoint file " + file, e);
+                } finally {
+                    reader.close();
+                }
+            }
+
+            @Override
+            public void save(long committed) throws IOException {
+                File temp = new File(file.getPath() + ".tmp");
+                FileOutputStream out = new FileOutputStream(temp);
+                try {
+                    Writer writer = new OutputStreamWriter(out, UTF8);
+                    writer.write(Long.toString(committed));
+                    writer.write('\n');
+                    writer.flush();
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+
+                if(! temp.renameTo(file)) {
+                    throw new IOException("Could not replace checkpoint file " + file);
+                }
+            }
+        };
+    }
+}
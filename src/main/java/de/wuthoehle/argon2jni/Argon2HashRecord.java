@@ -0,0 +1,252 @@
+package de.wuthoehle.argon2jni;
+/*
+ * Copyright (c) Marco Huenseler
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+/**
+ * Parsed form of an encoded Argon2 hash ($argon2id$v=19$m=...,t=...,p=...$salt$hash) holding the raw salt and hash.
+ * Converts losslessly from and to the strings created by Argon2. Strings without a version field (as written by
+ * old Argon2 releases) are encoded without it again.
+ * @author Marco Huenseler
+ * @version 0.1
+ * @see EncodedArgon2Result#getEncoded()
+ */
+public final class Argon2HashRecord {
+    private static final String BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    private final int typeid;
+    private final int versionid;
+    private final SecurityParameters securityParameters;
+    private final byte[] salt;
+    private final byte[] hash;
+    private final boolean versionEncoded;
+
+    /**
+     * Construct a record from its parts
+     * @param typeid Argon2 algorithm type
+     * @param versionid Argon2 version
+     * @param securityParameters SecurityParameters (t_cost, m_cost, parallelism) used
+     * @param salt Raw salt
+     * @param hash Raw hash
+     * @see Argon2.TypeIdentifiers
+     * @see Argon2.VersionIdentifiers
+     */
+    public Argon2HashRecord(int typeid, int versionid, SecurityParameters securityParameters, byte[] salt, byte[] hash) {
+        this(typeid, versionid, securityParameters, salt, hash, true);
+    }
+
+    /**
+     * @param versionEncoded Whether getEncoded includes the version field. Only version 0x10 may omit it.
+     */
+    Argon2HashRecord(int typeid, int versionid, SecurityParameters securityParameters, byte[] salt, byte[] hash,
+                     boolean versionEncoded) {
+        typeName(typeid);
+        if(versionid != Argon2.VersionIdentifiers.VERSION_10 && versionid != Argon2.VersionIdentifiers.VERSION_13) {
+            throw new IllegalArgumentException("Argon2 version must be a valid algorithm version ID");
+        }
+        if(! versionEncoded && versionid != Argon2.VersionIdentifiers.VERSION_10) {
+            throw new IllegalArgumentException("Only Argon2 version 0x10 may be encoded without version field");
+        }
+
+        this.typeid = typeid;
+        this.versionid = versionid;
+        this.securityParameters = securityParameters;
+        this.salt = salt;
+        this.hash = hash;
+        this.versionEncoded = versionEncoded;
+    }
+
+    public int getTypeid() {
+        return typeid;
+    }
+
+    public int getVersionid() {
+        return versionid;
+    }
+
+    public SecurityParameters getSecurityParameters() {
+        return securityParameters;
+    }
+
+    public byte[] getSalt() {
+        return salt;
+    }
+
+    public byte[] getHash() {
+        return hash;
+    }
+
+    /**
+     * @return false if the record was parsed from a string without version field
+     */
+    public boolean isVersionEncoded() {
+        return versionEncoded;
+    }
+
+    /**
+     * Parse an encoded Argon2 hash the same way Argon2's decoder does. A missing version field means version 0x10.
+     * @param encoded Encoded Argon2 hash
+     * @return Parsed record
+     * @throws Argon2Exception if the string could not be decoded
+     */
+    public static Argon2HashRecord parse(String encoded) {
+        String[] fields = encoded.split("\\$", -1);
+        // "", type, [v=version,] m=...,t=...,p=..., salt, hash
+        if(fields.length != 5 && fields.length != 6 || fields[0].length() != 0) {
+            throw new Argon2Exception("Decoding failed");
+        }
+
+        int typeid = typeId(fields[1]);
+        int index = 2;
+        int versionid = Argon2.VersionIdentifiers.VERSION_10;
+        if(fields.length == 6) {
+            if(! fields[index].startsWith("v=")) {
+                throw new Argon2Exception("Decoding failed");
+            }
+            versionid = decimal(fields[index++].substring(2));
+        }
+
+        String[] costs = fields[index++].split(",", -1);
+        if(costs.length != 3 || ! costs[0].startsWith("m=") || ! costs[1].startsWith("t=") || ! costs[2].startsWith("p=")) {
+            throw new Argon2Exception("Decoding failed");
+        }
+        SecurityParameters securityParameters = new SecurityParameters(
+                decimal(costs[1].substring(2)), decimal(costs[0].substring(2)), decimal(costs[2].substring(2)));
+
+        byte[] salt = fromBase64(fields[index++]);
+        byte[] hash = fromBase64(fields[index]);
+
+        try {
+            return new Argon2HashRecord(typeid, versionid, securityParameters, salt, hash, fields.length == 6);
+        } catch(IllegalArgumentException e) {
+            throw new Argon2Exception("Decoding failed", e);
+        }
+    }
+
+    public static Argon2HashRecord fromResult(EncodedArgon2Result result) {
+        return parse(result.getEncoded());
+    }
+
+    /**
+     * Encode this record the same way Argon2 does
+     * @return Encoded Argon2 hash
+     */
+    public String getEncoded() {
+        StringBuilder encoded = new StringBuilder();
+        encoded.append('$').append(typeName(this.typeid));
+        if(this.versionEncoded) {
+            encoded.append("$v=").append(this.versionid);
+        }
+        encoded.append("$m=").append(this.securityParameters.m_cost)
+                .append(",t=").append(this.securityParameters.t_cost)
+                .append(",p=").append(this.securityParameters.parallelism)
+                .append('$');
+        toBase64(this.salt, encoded);
+        encoded.append('$');
+        toBase64(this.hash, encoded);
+        return encoded.toString();
+    }
+
+    public EncodedArgon2Result toResult() {
+        return new EncodedArgon2Result(this.hash, this.getEncoded());
+    }
+
+    static String typeName(int typeid) {
+        switch(typeid) {
+            case Argon2.TypeIdentifiers.ARGON2D:
+                return "argon2d";
+            case Argon2.TypeIdentifiers.ARGON2I:
+                return "argon2i";
+            case Argon2.TypeIdentifiers.ARGON2ID:
+                return "argon2id";
+            default:
+                throw new IllegalArgumentException("Argon2 type must be a valid algorithm ID");
+        }
+    }
+
+    private static int typeId(String name) {
+        if(name.equals("argon2d")) {
+            return Argon2.TypeIdentifiers.ARGON2D;
+        } else if(name.equals("argon2i")) {
+            return Argon2.TypeIdentifiers.ARGON2I;
+        } else if(name.equals("argon2id")) {
+            return Argon2.TypeIdentifiers.ARGON2ID;
+        }
+        throw new Argon2Exception("Decoding failed");
+    }
+
+    private static int decimal(String value) {
+        // Argon2's decoder only accepts plain digits without leading zeros
+        if(value.length() == 0 || value.length() > 10 || (value.length() > 1 && value.charAt(0) == '0')) {
+            throw new Argon2Exception("Decoding failed");
+        }
+        long result = 0;
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(c < '0' || c > '9') {
+                throw new Argon2Exception("Decoding failed");
+            }
+            result = result * 10 + (c - '0');
+        }
+        if(result > Integer.MAX_VALUE) {
+            throw new Argon2Exception("Decoding failed");
+        }
+        return (int) result;
+    }
+
+    /**
+     * Base64 without padding, as used by Argon2
+     */
+    private static void toBase64(byte[] value, StringBuilder target) {
+        int i = 0;
+        for(; i + 2 < value.length; i += 3) {
+            int bits = ((value[i] & 0xFF) << 16) | ((value[i + 1] & 0xFF) << 8) | (value[i + 2] & 0xFF);
+            target.append(BASE64_ALPHABET.charAt(bits >> 18))
+                    .append(BASE64_ALPHABET.charAt((bits >> 12) & 0x3F))
+                    .append(BASE64_ALPHABET.charAt((bits >> 6) & 0x3F))
+                    .append(BASE64_ALPHABET.charAt(bits & 0x3F));
+        }
+        if(value.length - i == 1) {
+            int bits = (value[i] & 0xFF) << 16;
+            target.append(BASE64_ALPHABET.charAt(bits >> 18))
+                    .append(BASE64_ALPHABET.charAt((bits >> 12) & 0x3F));
+        } else if(value.length - i == 2) {
+            int bits = ((value[i] & 0xFF) << 16) | ((value[i + 1] & 0xFF) << 8);
+            target.append(BASE64_ALPHABET.charAt(bits >> 18))
+                    .append(BASE64_ALPHABET.charAt((bits >> 12) & 0x3F))
+                    .append(BASE64_ALPHABET.charAt((bits >> 6) & 0x3F));
+        }
+    }
+
+    private static byte[] fromBase64(String value) {
+        if(value.length() % 4 == 1) {
+            throw new Argon2Exception("Decoding failed");
+        }
+
+        byte[] result = new byte[value.length() * 3 / 4];
+        int bits = 0;
+        int bitcount = 0;
+        int position = 0;
+        for(int i = 0; i < value.length(); i++) {
+            int digit = BASE64_ALPHABET.indexOf(value.charAt(i));
+            if(digit < 0) {
+                throw new Argon2Exception("Decoding failed");
+            }
+            bits = ((bits << 6) | digit) & 0xFFF;
+            bitcount += 6;
+            if(bitcount >= 8) {
+                bitcount -= 8;
+                result[position++] = (byte) (bits >> bitcount);
+            }
+        }
+
+        // Leftover bits must be zero, otherwise the encoding would not be canonical
+        if((bits & ((1 << bitcount) - 1)) != 0) {
+            throw new Argon2Exception("Decoding failed");
+        }
+        return result;
+    }
+}
@@ -0,0 +1,129 @@
+package de.wuthoehle.argon2jni;
+/*
+ * Copyright (c) Marco Huenseler
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+import java.io.Closeable;
+
+/**
+ * Resumable Argon2 computation. Instead of blocking until the whole hash is computed, the work is done
+ * in segments (one quarter of one lane within one pass) whenever {@link #step(int)} is called.
+ * This allows a single thread, e.g. an event loop, to interleave several hashes with a bounded time per call.
+ * The result is identical to the one of {@link Argon2#argon2_hash(byte[], byte[])}.
+ * <br>Instances own native memory of m_cost KiB until they are finished or closed.
+ * @author Marco Huenseler
+ * @version 0.1
+ * @see Argon2#argon2_hash_stepwise(byte[], byte[])
+ */
+public class Argon2HashState implements Closeable {
+    private long handle;
+    private final int totalSegments;
+    private int remainingSegments;
+
+    Argon2HashState(int t_cost, int m_cost, int parallelism,
+                    byte[] pwd, byte[] salt,
+                    int hashlen, int encodedlen,
+                    int typeid, int versionid) {
+        this.handle = argon2jni_state_create(t_cost, m_cost, parallelism, pwd, salt, hashlen, encodedlen, typeid, versionid);
+        this.remainingSegments = argon2jni_state_step(this.handle, 0);
+        this.totalSegments = this.remainingSegments;
+    }
+
+    /**
+     * Compute up to maxSegments segments
+     * @param maxSegments Upper bound of segments to compute during this call
+     * @return true if the computation has finished
+     */
+    public synchronized boolean step(int maxSegments) {
+        this.ensureOpen();
+        if(maxSegments < 0) {
+            throw new IllegalArgumentException("maxSegments must not be negative");
+        }
+
+        this.remainingSegments = argon2jni_state_step(this.handle, maxSegments);
+        return this.remainingSegments == 0;
+    }
+
+    /**
+     * Compute segments until the computation has finished or the time budget is used up.
+     * At least one segment is computed, so the budget may be exceeded by the duration of one segment.
+     * @param maxNanos Time budget in nanoseconds
+     * @return true if the computation has finished
+     */
+    public synchronized boolean stepFor(long maxNanos) {
+        long start = System.nanoTime();
+        do {
+            if(this.step(1)) {
+                return true;
+            }
+        } while(System.nanoTime() - start < maxNanos);
+
+        return false;
+    }
+
+    public synchronized boolean isFinished() {
+        return this.remainingSegments == 0;
+    }
+
+    public int getTotalSegments() {
+        return this.totalSegments;
+    }
+
+    public synchronized int getRemainingSegments() {
+        return this.remainingSegments;
+    }
+
+    /**
+     * Get the result of a finished computation
+     * @return Argon2Result or EncodedArgon2Result object, depending on how the computation was started
+     * @throws IllegalStateException if the computation has not finished yet
+     */
+    public synchronized Argon2Result getResult() {
+        this.ensureOpen();
+        return argon2jni_state_result(this.handle);
+    }
+
+    /**
+     * Wipe and free the native memory. Unfinished computations are aborted.
+     */
+    @Override
+    public synchronized void close() {
+        if(this.handle != 0) {
+            argon2jni_state_free(this.handle);
+            this.handle = 0;
+        }
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        try {
+            this.close();
+        } finally {
+            super.finalize();
+        }
+    }
+
+    private void ensureOpen() {
+        if(this.handle == 0) {
+            throw new IllegalStateException("Argon2HashState has already been closed");
+        }
+    }
+
+    private static native long argon2jni_state_create(int t_cost, int m_cost, int parallelism,
+                                                      byte[] pwd, byte[] salt,
+                                                      int hashlen, int encodedlen,
+                                                      int typeid, int versionid);
+
+    /**
+     * Compute up to maxsegments segments and finalize the hash as soon as the last one is done
+     * @return Number of segments left
+     */
+    private static native int argon2jni_state_step(long handle, int maxsegments);
+
+    private static native Argon2Result argon2jni_state_result(long handle);
+
+    private static native void argon2jni_state_free(long handle);
+}
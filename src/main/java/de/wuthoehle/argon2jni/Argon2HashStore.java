@@ -0,0 +1,683 @@
+package de.wuthoehle.argon2jni;
+/*
+ * Copyright (c) Marco Huenseler
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Memory-mapped file of Argon2 hashes indexed by a user key. Every entry is stored as a fixed-width binary record
+ * (type, version, costs, raw salt and raw hash), so large credential sets live outside the Java heap and
+ * verification reads salt and hash straight from the mapped file instead of parsing an encoded string.
+ * <br>The capacity is fixed when the file is created. Keys are located by open addressing on their hash code;
+ * keep the store well below its capacity for short lookups. The whole file must fit into a single mapping (2 GiB).
+ * Tombstones of removed entries are reclaimed by rehashing the file in place. If the process dies while doing so,
+ * the next open finishes the compaction.
+ * <br>Instances are thread-safe. Verifications only lock the store while copying an entry, not while Argon2 runs.
+ * Once closed, all methods accessing entries throw an IllegalStateException.
+ * @author Marco Huenseler
+ * @version 0.1
+ * @see Argon2HashRecord
+ */
+public class Argon2HashStore implements Closeable {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // "A2HS"
+    private static final int MAGIC = 0x41324853;
+    private static final int FORMAT_VERSION = 2;
+
+    // Header: magic, format version, capacity, key width, salt width, hash width, size, tombstones, flags
+    private static final int HEADER_SIZE = 64;
+    private static final int HEADER_CAPACITY = 8;
+    private static final int HEADER_KEY_WIDTH = 12;
+    private static final int HEADER_SALT_WIDTH = 16;
+    private static final int HEADER_HASH_WIDTH = 20;
+    private static final int HEADER_SIZE_FIELD = 24;
+    private static final int HEADER_TOMBSTONES = 28;
+    private static final int HEADER_FLAGS = 32;
+
+    // Set while tombstones are being compacted, a store opened in this state finishes the compaction first
+    private static final int FLAG_COMPACTING = 1;
+
+    // Two spare slots follow the table. During compaction they hold entries being moved, so every entry is kept in
+    // at least one slot of the file at all times.
+    private static final int SPARE_SLOTS = 2;
+
+    // Slot: state, typeid, versionid, salt length, hash length, key length, t_cost, m_cost, parallelism, key, salt, hash
+    private static final int SLOT_STATE = 0;
+    private static final int SLOT_TYPE = 1;
+    private static final int SLOT_VERSION = 2;
+    private static final int SLOT_SALT_LENGTH = 3;
+    private static final int SLOT_HASH_LENGTH = 4;
+    private static final int SLOT_KEY_LENGTH = 5;
+    private static final int SLOT_T_COST = 7;
+    private static final int SLOT_M_COST = 11;
+    private static final int SLOT_PARALLELISM = 15;
+    private static final int SLOT_KEY = 19;
+
+    // Set in the version byte of records whose encoded form has no version field
+    private static final int VERSION_NOT_ENCODED = 0x80;
+
+    private static final byte STATE_EMPTY = 0;
+    private static final byte STATE_USED = 1;
+    private static final byte STATE_DELETED = 2;
+    // Only used during compaction: entry which has not been moved to its final slot yet
+    private static final byte STATE_PENDING = 3;
+
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int keyWidth;
+    private final int saltWidth;
+    private final int hashWidth;
+    private final int slotSize;
+    private boolean closed = false;
+    // Fair, so writers are not starved by a steady stream of lookups
+    private final ReadWriteLock lock = new ReentrantReadWriteLock(true);
+
+    // Salt and hash of the entry being verified, copied out of the mapping so Argon2 runs without holding the lock
+    private final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(saltWidth + hashWidth);
+        }
+    };
+
+    private static final int MissingKeySaltLength = 16;
+    // Zero salt and hash for dummy verifications of unknown keys, only ever read
+    private static final ByteBuffer MissingKeyBuffer = ByteBuffer.allocateDirect(MissingKeySaltLength + Argon2.DefaultHashlen);
+
+    private volatile Argon2HashRecord missingKeyRecord = new Argon2HashRecord(
+            Argon2.DefaultTypeIdentifier, Argon2.DefaultVersionIdentifier, Argon2.DefaultSecurityParameterTemplate,
+            new byte[MissingKeySaltLength], new byte[Argon2.DefaultHashlen]);
+
+    private Argon2HashStore(MappedByteBuffer buffer) throws IOException {
+        if(buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Not an Argon2HashStore file");
+        }
+
+        this.buffer = buffer;
+        this.capacity = buffer.getInt(HEADER_CAPACITY);
+        this.keyWidth = buffer.getInt(HEADER_KEY_WIDTH);
+        this.saltWidth = buffer.getInt(HEADER_SALT_WIDTH);
+        this.hashWidth = buffer.getInt(HEADER_HASH_WIDTH);
+        this.slotSize = SLOT_KEY + this.keyWidth + this.saltWidth + this.hashWidth;
+
+        if(! validWidths(this.capacity, this.keyWidth, this.saltWidth, this.hashWidth)) {
+            throw new IOException("Argon2HashStore header is corrupt");
+        }
+        if(length(this.capacity, this.slotSize) > buffer.capacity()) {
+            throw new IOException("Argon2HashStore file is truncated");
+        }
+        int size = buffer.getInt(HEADER_SIZE_FIELD);
+        int tombstones = buffer.getInt(HEADER_TOMBSTONES);
+        int flags = buffer.getInt(HEADER_FLAGS);
+        if(size < 0 || tombstones < 0 || (long) size + tombstones > this.capacity || (flags & ~FLAG_COMPACTING) != 0) {
+            throw new IOException("Argon2HashStore header is corrupt");
+        }
+
+        if((flags & FLAG_COMPACTING) != 0) {
+            this.resumeCompaction();
+        }
+    }
+
+    /**
+     * Create a new, empty store. An existing file is overwritten.
+     * @param file File to create
+     * @param capacity Maximum number of entries
+     * @param keyWidth Maximum length of a key in UTF-8 bytes (at most 65535)
+     * @param saltWidth Maximum salt length in bytes (at most 255)
+     * @param hashWidth Maximum hash length in bytes (at most 255)
+     * @return Store backed by file
+     * @throws IOException if the file could not be created or mapped
+     */
+    public static Argon2HashStore create(File file, int capacity, int keyWidth, int saltWidth, int hashWidth) throws IOException {
+        if(! validWidths(capacity, keyWidth, saltWidth, hashWidth)) {
+            throw new IllegalArgumentException("Capacity and widths must be positive, keys up to 65535 bytes, salt and hash up to 255 bytes");
+        }
+        long length = length(capacity, SLOT_KEY + keyWidth + saltWidth + hashWidth);
+        if(length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Argon2HashStore must not exceed 2 GiB");
+        }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            // Truncating first makes sure all slots start out empty (zero)
+            randomAccessFile.setLength(0);
+            randomAccessFile.setLength(length);
+
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, FORMAT_VERSION);
+            buffer.putInt(HEADER_CAPACITY, capacity);
+            buffer.putInt(HEADER_KEY_WIDTH, keyWidth);
+            buffer.putInt(HEADER_SALT_WIDTH, saltWidth);
+            buffer.putInt(HEADER_HASH_WIDTH, hashWidth);
+            buffer.putInt(HEADER_SIZE_FIELD, 0);
+            buffer.putInt(HEADER_TOMBSTONES, 0);
+            buffer.putInt(HEADER_FLAGS, 0);
+            return new Argon2HashStore(buffer);
+        } finally {
+            // The mapping stays valid after the file has been closed
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Open an existing store. A compaction interrupted by a crash is finished before returning.
+     * @param file File created by create
+     * @return Store backed by file
+     * @throws IOException if the file could not be mapped or is no store
+     */
+    public static Argon2HashStore open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            if(randomAccessFile.length() > Integer.MAX_VALUE) {
+                throw new IOException("Argon2HashStore must not exceed 2 GiB");
+            }
+            return new Argon2HashStore(randomAccessFile.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, randomAccessFile.length()));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    public int capacity() {
+        return this.capacity;
+    }
+
+    public int size() {
+        this.lock.readLock().lock();
+        try {
+            this.ensureOpen();
+            return this.buffer.getInt(HEADER_SIZE_FIELD);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Number of tombstones left by removed entries
+     */
+    int tombstones() {
+        this.lock.readLock().lock();
+        try {
+            this.ensureOpen();
+            return this.buffer.getInt(HEADER_TOMBSTONES);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Store an encoded Argon2 hash, replacing a previous entry of the same key
+     * @param key User key
+     * @param encoded Encoded Argon2 hash
+     * @throws Argon2Exception if encoded could not be decoded
+     */
+    public void put(String key, String encoded) {
+        this.put(key, Argon2HashRecord.parse(encoded));
+    }
+
+    /**
+     * Store a record, replacing a previous entry of the same key
+     * @param key User key
+     * @param record Record to store
+     * @throws IllegalArgumentException if key, salt or hash exceed the widths of this store
+     * @throws IllegalStateException if the store is full or closed
+     */
+    public void put(String key, Argon2HashRecord record) {
+        byte[] keyBytes = key.getBytes(UTF8);
+        if(keyBytes.length > this.keyWidth || record.getSalt().length > this.saltWidth || record.getHash().length > this.hashWidth) {
+            throw new IllegalArgumentException("Key, salt or hash exceed the widths of this Argon2HashStore");
+        }
+
+        this.lock.writeLock().lock();
+        try {
+            this.ensureOpen();
+            int slot = this.find(keyBytes);
+            if(slot < 0) {
+                slot = this.findFree(keyBytes);
+                if(slot < 0) {
+                    throw new IllegalStateException("Argon2HashStore is full");
+                }
+                if(this.buffer.get(this.slotOffset(slot) + SLOT_STATE) == STATE_DELETED) {
+                    this.buffer.putInt(HEADER_TOMBSTONES, this.buffer.getInt(HEADER_TOMBSTONES) - 1);
+                }
+                this.buffer.putInt(HEADER_SIZE_FIELD, this.buffer.getInt(HEADER_SIZE_FIELD) + 1);
+            }
+
+            int offset = this.slotOffset(slot);
+            SecurityParameters securityParameters = record.getSecurityParameters();
+            this.buffer.put(offset + SLOT_TYPE, (byte) record.getTypeid());
+            this.buffer.put(offset + SLOT_VERSION,
+                    (byte) (record.getVersionid() | (record.isVersionEncoded() ? 0 : VERSION_NOT_ENCODED)));
+            this.buffer.put(offset + SLOT_SALT_LENGTH, (byte) record.getSalt().length);
+            this.buffer.put(offset + SLOT_HASH_LENGTH, (byte) record.getHash().length);
+            this.buffer.putShort(offset + SLOT_KEY_LENGTH, (short) keyBytes.length);
+            this.buffer.putInt(offset + SLOT_T_COST, securityParameters.t_cost);
+            this.buffer.putInt(offset + SLOT_M_COST, securityParameters.m_cost);
+            this.buffer.putInt(offset + SLOT_PARALLELISM, securityParameters.parallelism);
+            this.putBytes(offset + SLOT_KEY, keyBytes);
+            this.putBytes(this.saltOffset(offset), record.getSalt());
+            this.putBytes(this.hashOffset(offset), record.getHash());
+            this.buffer.put(offset + SLOT_STATE, STATE_USED);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param key User key
+     * @return Stored record or null if there is no entry for key
+     */
+    public Argon2HashRecord get(String key) {
+        byte[] keyBytes = key.getBytes(UTF8);
+
+        this.lock.readLock().lock();
+        try {
+            this.ensureOpen();
+            int slot = this.find(keyBytes);
+            if(slot < 0) {
+                return null;
+            }
+
+            int offset = this.slotOffset(slot);
+            int version = this.buffer.get(offset + SLOT_VERSION) & 0xFF;
+            return new Argon2HashRecord(
+                    this.buffer.get(offset + SLOT_TYPE),
+                    version & ~VERSION_NOT_ENCODED,
+                    new SecurityParameters(
+                            this.buffer.getInt(offset + SLOT_T_COST),
+                            this.buffer.getInt(offset + SLOT_M_COST),
+                            this.buffer.getInt(offset + SLOT_PARALLELISM)),
+                    this.getBytes(this.saltOffset(offset), this.buffer.get(offset + SLOT_SALT_LENGTH) & 0xFF),
+                    this.getBytes(this.hashOffset(offset), this.buffer.get(offset + SLOT_HASH_LENGTH) & 0xFF),
+                    (version & VERSION_NOT_ENCODED) == 0);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param key User key
+     * @return Stored hash in Argon2's encoded form or null if there is no entry for key
+     */
+    public String getEncoded(String key) {
+        Argon2HashRecord record = this.get(key);
+        return record == null ? null : record.getEncoded();
+    }
+
+    /**
+     * @param key User key
+     * @return true if an entry has been removed
+     */
+    public boolean remove(String key) {
+        byte[] keyBytes = key.getBytes(UTF8);
+
+        this.lock.writeLock().lock();
+        try {
+            this.ensureOpen();
+            int slot = this.find(keyBytes);
+            if(slot < 0) {
+                return false;
+            }
+
+            // Keep a tombstone so probing continues past this slot
+            int offset = this.slotOffset(slot);
+            this.buffer.put(offset + SLOT_STATE, STATE_DELETED);
+            this.putBytes(this.hashOffset(offset), new byte[this.hashWidth]);
+            this.buffer.putInt(HEADER_SIZE_FIELD, this.buffer.getInt(HEADER_SIZE_FIELD) - 1);
+
+            // Misses only stop at empty slots, so do not let tombstones take over the free space
+            int tombstones = this.buffer.getInt(HEADER_TOMBSTONES) + 1;
+            this.buffer.putInt(HEADER_TOMBSTONES, tombstones);
+            if(tombstones * 2 > this.capacity - this.buffer.getInt(HEADER_SIZE_FIELD)) {
+                this.compact();
+            }
+            return true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Check whether a password matches the stored hash. Salt and hash are copied from the mapped file into a small
+     * per-thread direct buffer, which is passed to Argon2 without further copies. The store is not locked while
+     * Argon2 is running.
+     * <br>For unknown keys a dummy verification using the missing key parameters is run, so the time taken does not
+     * reveal whether an entry exists.
+     * @param key User key
+     * @param pwd Password to check
+     * @return true if there is an entry for key and the password is valid, otherwise false
+     * @see #setMissingKeyParameters(SecurityParameters, int, int)
+     */
+    public boolean verify(String key, byte[] pwd) {
+        byte[] keyBytes = key.getBytes(UTF8);
+        ByteBuffer scratch = this.scratch.get();
+        Argon2HashRecord missingKeyRecord = this.missingKeyRecord;
+
+        int saltlen = 0, hashlen = 0, t_cost = 0, m_cost = 0, parallelism = 0, typeid = 0, versionid = 0;
+        boolean found;
+
+        this.lock.readLock().lock();
+        try {
+            this.ensureOpen();
+            int slot = this.find(keyBytes);
+            found = slot >= 0;
+            if(found) {
+                int offset = this.slotOffset(slot);
+                saltlen = this.buffer.get(offset + SLOT_SALT_LENGTH) & 0xFF;
+                hashlen = this.buffer.get(offset + SLOT_HASH_LENGTH) & 0xFF;
+                t_cost = this.buffer.getInt(offset + SLOT_T_COST);
+                m_cost = this.buffer.getInt(offset + SLOT_M_COST);
+                parallelism = this.buffer.getInt(offset + SLOT_PARALLELISM);
+                typeid = this.buffer.get(offset + SLOT_TYPE);
+                versionid = this.buffer.get(offset + SLOT_VERSION) & ~VERSION_NOT_ENCODED & 0xFF;
+                for(int i = 0; i < saltlen; i++) {
+                    scratch.put(i, this.buffer.get(this.saltOffset(offset) + i));
+                }
+                for(int i = 0; i < hashlen; i++) {
+                    scratch.put(this.saltWidth + i, this.buffer.get(this.hashOffset(offset) + i));
+                }
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+
+        if(! found) {
+            SecurityParameters securityParameters = missingKeyRecord.getSecurityParameters();
+            Argon2.argon2jni_verify_raw_direct(
+                    MissingKeyBuffer, 0, MissingKeySaltLength, MissingKeySaltLength, Argon2.DefaultHashlen,
+                    securityParameters.t_cost, securityParameters.m_cost, securityParameters.parallelism,
+                    pwd, missingKeyRecord.getTypeid(), missingKeyRecord.getVersionid());
+            return false;
+        }
+
+        return Argon2.argon2jni_verify_raw_direct(
+                scratch, 0, saltlen, this.saltWidth, hashlen,
+                t_cost, m_cost, parallelism,
+                pwd, typeid, versionid);
+    }
+
+    /**
+     * Set the parameters of the dummy verification run for unknown keys. They should match the parameters of the
+     * stored entries. Argon2's defaults are used until this is called.
+     * @param securityParameters SecurityParameters (t_cost, m_cost, parallelism) to use
+     * @param typeid Argon2 algorithm type to use
+     * @param versionid Argon2 version to use
+     * @see #verify(String, byte[])
+     */
+    public void setMissingKeyParameters(SecurityParameters securityParameters, int typeid, int versionid) {
+        this.missingKeyRecord = new Argon2HashRecord(typeid, versionid, securityParameters,
+                new byte[MissingKeySaltLength], new byte[Argon2.DefaultHashlen]);
+    }
+
+    /**
+     * Write all changes to the file
+     * @throws IllegalStateException if the store is closed
+     */
+    public void flush() {
+        this.lock.writeLock().lock();
+        try {
+            this.ensureOpen();
+            this.buffer.force();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Write all changes to the file and close the store. Closing an already closed store has no effect.
+     * The mapping itself is released once this object is garbage collected.
+     */
+    @Override
+    public void close() {
+        this.lock.writeLock().lock();
+        try {
+            if(! this.closed) {
+                this.buffer.force();
+                this.closed = true;
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private void ensureOpen() {
+        if(this.closed) {
+            throw new IllegalStateException("Argon2HashStore is closed");
+        }
+    }
+
+    /**
+     * Rehash in place, turning all tombstones into empty slots. Entries are moved to the first free slot of their
+     * probe sequence; entries not moved yet are marked pending. An entry in the way of the moved one is carried on in
+     * a spare slot until it has been placed itself. Slots of moved entries never change again, so their probe
+     * sequences stay intact.
+     * <br>Each step only copies an entry before emptying its old slot, so a crash leaves every entry in the table or
+     * in a spare slot and the compaction can be started over by resumeCompaction. Must be called holding the write
+     * lock or from the constructor.
+     */
+    private void compact() {
+        this.buffer.putInt(HEADER_FLAGS, this.buffer.getInt(HEADER_FLAGS) | FLAG_COMPACTING);
+        this.buffer.force();
+
+        for(int slot = 0; slot < this.capacity; slot++) {
+            byte state = this.state(slot);
+            if(state == STATE_USED) {
+                this.setState(slot, STATE_PENDING);
+            } else if(state == STATE_DELETED) {
+                this.setState(slot, STATE_EMPTY);
+            }
+        }
+
+        for(int slot = 0; slot < this.capacity; slot++) {
+            if(this.state(slot) != STATE_PENDING) {
+                continue;
+            }
+            if(this.findFree(this.slotKey(slot)) == slot) {
+                this.setState(slot, STATE_USED);
+                continue;
+            }
+
+            int carry = this.capacity;
+            this.copySlot(slot, carry, STATE_PENDING);
+            this.setState(slot, STATE_EMPTY);
+            while(carry >= 0) {
+                int target = this.findFree(this.slotKey(carry));
+                int next = -1;
+                if(this.state(target) == STATE_PENDING) {
+                    // Carry the entry in the way on in the other spare slot
+                    next = carry == this.capacity ? this.capacity + 1 : this.capacity;
+                    this.copySlot(target, next, STATE_PENDING);
+                    this.setState(target, STATE_EMPTY);
+                }
+                this.copySlot(carry, target, STATE_USED);
+                this.setState(carry, STATE_EMPTY);
+                carry = next;
+            }
+        }
+
+        this.buffer.putInt(HEADER_TOMBSTONES, 0);
+        this.buffer.force();
+        this.buffer.putInt(HEADER_FLAGS, this.buffer.getInt(HEADER_FLAGS) & ~FLAG_COMPACTING);
+    }
+
+    /**
+     * Finish a compaction interrupted by a crash. Entries only held by a spare slot are put back into a free slot of
+     * the table, copies of entries still present in the table are dropped. Afterwards the compaction is started over.
+     */
+    private void resumeCompaction() {
+        for(int spare = this.capacity; spare < this.capacity + SPARE_SLOTS; spare++) {
+            if(this.state(spare) != STATE_PENDING) {
+                continue;
+            }
+            if(this.contains(this.slotKey(spare))) {
+                this.setState(spare, STATE_EMPTY);
+                continue;
+            }
+
+            // Moving an entry always emptied its old slot, so there is room for it
+            for(int slot = 0; slot < this.capacity; slot++) {
+                byte state = this.state(slot);
+                if(state == STATE_EMPTY || state == STATE_DELETED) {
+                    this.copySlot(spare, slot, STATE_PENDING);
+                    this.setState(spare, STATE_EMPTY);
+                    break;
+                }
+            }
+        }
+        this.compact();
+    }
+
+    /**
+     * @return true if a used or pending slot of the table holds key, regardless of its probe sequence
+     */
+    private boolean contains(byte[] keyBytes) {
+        for(int slot = 0; slot < this.capacity; slot++) {
+            byte state = this.state(slot);
+            if((state == STATE_USED || state == STATE_PENDING) && this.keyEquals(this.slotOffset(slot), keyBytes)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copy everything but the state, then set the state of the target slot
+     */
+    private void copySlot(int from, int to, byte state) {
+        int fromOffset = this.slotOffset(from);
+        int toOffset = this.slotOffset(to);
+        for(int i = SLOT_STATE + 1; i < this.slotSize; i++) {
+            this.buffer.put(toOffset + i, this.buffer.get(fromOffset + i));
+        }
+        this.buffer.put(toOffset + SLOT_STATE, state);
+    }
+
+    private byte state(int slot) {
+        return this.buffer.get(this.slotOffset(slot) + SLOT_STATE);
+    }
+
+    private void setState(int slot, byte state) {
+        this.buffer.put(this.slotOffset(slot) + SLOT_STATE, state);
+    }
+
+    private byte[] slotKey(int slot) {
+        int offset = this.slotOffset(slot);
+        return this.getBytes(offset + SLOT_KEY, this.buffer.getShort(offset + SLOT_KEY_LENGTH) & 0xFFFF);
+    }
+
+    /**
+     * @return Slot holding key or -1
+     */
+    private int find(byte[] keyBytes) {
+        int start = startSlot(keyBytes);
+        for(int i = 0; i < this.capacity; i++) {
+            int slot = (start + i) % this.capacity;
+            int offset = this.slotOffset(slot);
+            byte state = this.buffer.get(offset + SLOT_STATE);
+
+            if(state == STATE_EMPTY) {
+                return -1;
+            }
+            if(state == STATE_USED && this.keyEquals(offset, keyBytes)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return First empty or deleted slot on key's probe sequence or -1
+     */
+    private int findFree(byte[] keyBytes) {
+        int start = startSlot(keyBytes);
+        for(int i = 0; i < this.capacity; i++) {
+            int slot = (start + i) % this.capacity;
+            if(this.buffer.get(this.slotOffset(slot) + SLOT_STATE) != STATE_USED) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int startSlot(byte[] keyBytes) {
+        return startSlot(keyBytes, this.capacity);
+    }
+
+    /**
+     * @return First slot of key's probe sequence in a table of capacity slots
+     */
+    static int startSlot(byte[] keyBytes, int capacity) {
+        // FNV-1a, stable across runs and platforms
+        int hash = 0x811C9DC5;
+        for(byte element : keyBytes) {
+            hash ^= element & 0xFF;
+            hash *= 0x01000193;
+        }
+        return (hash & 0x7FFFFFFF) % capacity;
+    }
+
+    private static boolean validWidths(int capacity, int keyWidth, int saltWidth, int hashWidth) {
+        return capacity > 0 && keyWidth > 0 && keyWidth <= 0xFFFF && saltWidth > 0 && saltWidth <= 0xFF
+                && hashWidth > 0 && hashWidth <= 0xFF;
+    }
+
+    /**
+     * @return Length of a store file including header and spare slots
+     */
+    private static long length(int capacity, int slotSize) {
+        return HEADER_SIZE + ((long) capacity + SPARE_SLOTS) * slotSize;
+    }
+
+    private boolean keyEquals(int offset, byte[] keyBytes) {
+        if((this.buffer.getShort(offset + SLOT_KEY_LENGTH) & 0xFFFF) != keyBytes.length) {
+            return false;
+        }
+        for(int i = 0; i < keyBytes.length; i++) {
+            if(this.buffer.get(offset + SLOT_KEY + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int slotOffset(int slot) {
+        return HEADER_SIZE + slot * this.slotSize;
+    }
+
+    private int saltOffset(int slotOffset) {
+        return slotOffset + SLOT_KEY + this.keyWidth;
+    }
+
+    private int hashOffset(int slotOffset) {
+        return slotOffset + SLOT_KEY + this.keyWidth + this.saltWidth;
+    }
+
+    private void putBytes(int offset, byte[] value) {
+        for(int i = 0; i < value.length; i++) {
+            this.buffer.put(offset + i, value[i]);
+        }
+    }
+
+    private byte[] getBytes(int offset, int length) {
+        byte[] value = new byte[length];
+        for(int i = 0; i < length; i++) {
+            value[i] = this.buffer.get(offset + i);
+        }
+        return value;
+    }
+}
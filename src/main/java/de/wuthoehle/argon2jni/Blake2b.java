@@ -0,0 +1,217 @@
+package de.wuthoehle.argon2jni;
+/*
+ * Copyright (c) Marco Huenseler
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streaming BLAKE2b using the implementation bundled with Argon2.
+ * Feed data using the update methods and get the hash using finish. Instances can not be reused after finish.
+ * <br>Byte arrays and direct buffers (including memory-mapped file regions) are hashed without being copied.
+ * @author Marco Huenseler
+ * @version 0.1
+ */
+public class Blake2b implements Closeable {
+    static {
+        System.loadLibrary("argon2jni");
+    }
+
+    public static final int MaxOutputLength = 64;
+    public static final int MaxKeyLength = 64;
+
+    /**
+     * Size of the regions a file is mapped in by update(FileChannel, long, long)
+     */
+    private static final long MappingChunkSize = 1 << 26;
+
+    private long handle;
+    private final int outlen;
+    private boolean finished;
+
+    /**
+     * Construct an unkeyed BLAKE2b instance
+     * @param outlen Desired hash output length in bytes (1 to 64)
+     */
+    public Blake2b(int outlen) {
+        this(outlen, null);
+    }
+
+    /**
+     * Construct a keyed BLAKE2b instance (MAC mode)
+     * @param outlen Desired hash output length in bytes (1 to 64)
+     * @param key Key of at most 64 bytes, null or empty for unkeyed hashing
+     */
+    public Blake2b(int outlen, byte[] key) {
+        this.handle = argon2jni_blake2b_create(outlen, key);
+        this.outlen = outlen;
+    }
+
+    public int getOutputLength() {
+        return this.outlen;
+    }
+
+    public Blake2b update(byte[] in) {
+        return this.update(in, 0, in.length);
+    }
+
+    public synchronized Blake2b update(byte[] in, int offset, int len) {
+        this.ensureUpdatable();
+        argon2jni_blake2b_update(this.handle, in, offset, len);
+        return this;
+    }
+
+    /**
+     * Hash the remaining bytes of a buffer. The buffer's position is advanced to its limit.
+     * @param in Buffer to hash. Direct and memory-mapped buffers are read without copying.
+     * @return this
+     */
+    public synchronized Blake2b update(ByteBuffer in) {
+        this.ensureUpdatable();
+
+        if(in.isDirect()) {
+            argon2jni_blake2b_update_direct(this.handle, in, in.position(), in.remaining());
+        } else if(in.hasArray()) {
+            argon2jni_blake2b_update(this.handle, in.array(), in.arrayOffset() + in.position(), in.remaining());
+        } else {
+            // Read-only heap buffer
+            byte[] copy = new byte[in.remaining()];
+            in.duplicate().get(copy);
+            argon2jni_blake2b_update(this.handle, copy, 0, copy.length);
+        }
+
+        in.position(in.limit());
+        return this;
+    }
+
+    /**
+     * Hash a region of a file by mapping it into memory. The channel's position is not changed.
+     * @param channel Channel opened for reading
+     * @param position Start of the region
+     * @param size Length of the region in bytes
+     * @return this
+     * @throws IOException if the file could not be mapped
+     * @throws IllegalArgumentException if position or size is negative
+     */
+    public Blake2b update(FileChannel channel, long position, long size) throws IOException {
+        if(position < 0 || size < 0 || size > Long.MAX_VALUE - position) {
+            throw new IllegalArgumentException("Position and size must not be negative");
+        }
+        long end = position + size;
+        while(position < end) {
+            long chunk = Math.min(MappingChunkSize, end - position);
+            this.update(channel.map(FileChannel.MapMode.READ_ONLY, position, chunk));
+            position += chunk;
+        }
+        return this;
+    }
+
+    /**
+     * Finish the computation
+     * @return Hash of all data given to update
+     */
+    public byte[] finish() {
+        byte[] out = new byte[this.outlen];
+        this.finish(out, 0);
+        return out;
+    }
+
+    /**
+     * Finish the computation, writing getOutputLength() bytes to out
+     * @param out Array receiving the hash
+     * @param offset Index of the first byte to write
+     */
+    public synchronized void finish(byte[] out, int offset) {
+        this.ensureUpdatable();
+        argon2jni_blake2b_finish(this.handle, out, offset);
+        this.finished = true;
+    }
+
+    /**
+     * Wipe and free the native state
+     */
+    @Override
+    public synchronized void close() {
+        if(this.handle != 0) {
+            argon2jni_blake2b_free(this.handle);
+            this.handle = 0;
+        }
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        try {
+            this.close();
+        } finally {
+            super.finalize();
+        }
+    }
+
+    /**
+     * Hash a single message
+     * @param in Message to hash
+     * @param outlen Desired hash output length in bytes (1 to 64)
+     * @return Hash of in
+     */
+    public static byte[] hash(byte[] in, int outlen) {
+        return hash(in, outlen, null);
+    }
+
+    /**
+     * Hash a single message using a key
+     * @param in Message to hash
+     * @param outlen Desired hash output length in bytes (1 to 64)
+     * @param key Key of at most 64 bytes, null or empty for unkeyed hashing
+     * @return Hash of in
+     */
+    public static byte[] hash(byte[] in, int outlen, byte[] key) {
+        if(in == null) {
+            throw new NullPointerException("Message must not be null");
+        }
+        return argon2jni_blake2b_batch(new byte[][] {in}, outlen, key);
+    }
+
+    /**
+     * Hash many messages using a single native call
+     * @param messages Messages to hash
+     * @param outlen Desired hash output length in bytes (1 to 64)
+     * @param key Key of at most 64 bytes, null or empty for unkeyed hashing
+     * @return Concatenated hashes, the hash of messages[i] starts at index i * outlen
+     */
+    public static byte[] hashBatch(byte[][] messages, int outlen, byte[] key) {
+        if(messages == null) {
+            throw new NullPointerException("Messages must not be null");
+        }
+        if((long) messages.length * outlen > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Concatenated hashes must fit into a single array");
+        }
+        return argon2jni_blake2b_batch(messages, outlen, key);
+    }
+
+    private void ensureUpdatable() {
+        if(this.handle == 0) {
+            throw new IllegalStateException("Blake2b instance has already been closed");
+        }
+        if(this.finished) {
+            throw new IllegalStateException("Blake2b instance has already been finished");
+        }
+    }
+
+    private static native long argon2jni_blake2b_create(int outlen, byte[] key);
+
+    private static native void argon2jni_blake2b_update(long handle, byte[] in, int offset, int len);
+
+    private static native void argon2jni_blake2b_update_direct(long handle, ByteBuffer in, int offset, int len);
+
+    private static native void argon2jni_blake2b_finish(long handle, byte[] out, int offset);
+
+    private static native void argon2jni_blake2b_free(long handle);
+
+    private static native byte[] argon2jni_blake2b_batch(byte[][] messages, int outlen, byte[] key);
+}